@@ -0,0 +1,481 @@
+/**
+ *  A BlockMaxIndex holds, for every term, the largest BM25 term weight
+ *  tf/(tf + k1*((1-b)+b*len/avgdl)) in each block of its postings, and
+ *  uses it for Block-Max WAND (BMW) evaluation of bag-of-words (#SUM)
+ *  queries.  It is produced once, offline, for fixed k1 and b:
+ *
+ *    java BlockMaxIndex indexPath blockMaxIndexPath k1 b
+ *
+ *  The blocks are those of InvList: every InvList.BLOCK_SIZE postings
+ *  in docid order.  The weight does not include the term's RSJ, which
+ *  is applied at query time.  Weights are stored as floats, rounded up.
+ *
+ *  The index is a directory with two files:
+ *
+ *    terms.bin        k1, b, and for each field its name and, for each
+ *                     term, its string, its number of blocks and the
+ *                     offset of its blocks in blocks.bin.
+ *    blocks.bin       For each term, the last docid of each block
+ *                     (ints), then the largest weight of each block
+ *                     (floats).
+ *
+ *  evaluate() is WAND with a second, per-block check.  The query terms
+ *  are kept in order of their current docid.  The pivot is the first
+ *  docid at which the terms' whole-list bounds reach the threshold (the
+ *  k'th best score so far).  If the block bounds of those terms at the
+ *  pivot still reach it, the pivot is scored (or the lagging terms move
+ *  to it); if not, no document up to the end of the shortest of those
+ *  blocks can, and a term jumps past it without its postings being
+ *  scored.  The terms' lists are opened lazily, so the postings are
+ *  read through CompiledIndex or Lucene cursors, whose advance() skips
+ *  whole blocks without decoding them.
+ *
+ *  Kept documents have the score that exhaustive evaluation gives
+ *  them, so rank() produces the same ranking.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+public class BlockMaxIndex {
+
+    //  Bounds are inflated slightly, so that a document is never skipped
+    //  because its score was summed in a different order than its bound.
+
+    private static final double BOUND_SLACK = 1.0 + 1e-9;
+
+    //  Where the blocks of one term are.
+
+    private static class TermBlocks {
+        int numBlocks;
+        int offset;
+    }
+
+    //  A query term during evaluation.
+
+    private static class Term {
+        int arg;		// the term's position in the #SUM
+        PostingCursor postings;
+        int doc = -1;
+        double rsj;
+        double[] norms;
+        double bound;		// the most the term can add to any document
+        int df;
+
+        int numBlocks;
+        int block = 0;		// the block that holds doc, or a later one
+        int[] blockLastDocid;
+        float[] blockMaxWeight;
+
+        /**
+         *  Move to the block that can hold target.
+         *  @return The most the term can add to target.
+         */
+        double blockBound(int target) {
+            while (this.block > 0 && this.blockLastDocid[this.block - 1] >= target)
+                this.block--;
+            while (this.block < this.numBlocks && this.blockLastDocid[this.block] < target)
+                this.block++;
+            if (this.block == this.numBlocks)
+                return 0.0;
+            return Math.max(0.0, this.rsj * this.blockMaxWeight[this.block]) * BOUND_SLACK;
+        }
+
+        /**
+         *  @return The last docid of the current block.
+         */
+        int blockEnd() {
+            return (this.block < this.numBlocks) ?
+                this.blockLastDocid[this.block] : PostingCursor.NO_MORE_DOCS;
+        }
+
+        int nextDoc() throws IOException {
+            return (this.doc = this.postings.nextDoc());
+        }
+
+        int advance(int target) throws IOException {
+            return (this.doc = this.postings.advance(target));
+        }
+
+        double score() throws IOException {
+            int tf = this.postings.freq();
+            return this.rsj * (tf / ((double)tf + this.norms[this.doc]));
+        }
+    }
+
+    private double k1;
+    private double b;
+    private Map<String, Map<String, TermBlocks>> dictionary =
+        new HashMap<String, Map<String, TermBlocks>>();
+    private ByteBuffer blocks;
+
+    //  Postings scored and skipped, by the last evaluation and by all
+    //  of them.
+
+    private long postingsScored;
+    private long postingsSkipped;
+    private long totalPostingsScored = 0;
+    private long totalPostingsSkipped = 0;
+
+    /**
+     *  Build a block-max index.
+     *  @param args The Lucene index path, the output directory, k1 and b.
+     *  @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 4) {
+            System.err.println("Usage:  java BlockMaxIndex indexPath blockMaxIndexPath k1 b");
+            System.exit(1);
+        }
+
+        QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+        build(args[1], Double.parseDouble(args[2]), Double.parseDouble(args[3]));
+    }
+
+    /**
+     *  Write a block-max index of the index that QryEval.READER reads.
+     *  @param path The directory to write the block-max index to.
+     *  @param k1 The BM25 k1 parameter.
+     *  @param b The BM25 b parameter.
+     *  @throws IOException
+     */
+    public static void build(String path, double k1, double b) throws IOException {
+
+        File dir = new File(path);
+        dir.mkdirs();
+
+        IndexReader reader = QryEval.READER;
+        IndexStats stats = new IndexStats(reader);
+        DocLengthStore lengths = new DocLengthStore(reader);
+
+        List<String> fields = new ArrayList<String>();
+        for (FieldInfo fi : MultiFields.getMergedFieldInfos(reader)) {
+            if (fi.isIndexed() && fi.hasNorms() &&
+                fi.getIndexOptions().compareTo(FieldInfo.IndexOptions.DOCS_AND_FREQS) >= 0)
+                fields.add(fi.name);
+        }
+
+        DataOutputStream termsOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, "terms.bin"))));
+        DataOutputStream blocksOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, "blocks.bin"))));
+        int offset = 0;
+
+        termsOut.writeDouble(k1);
+        termsOut.writeDouble(b);
+        termsOut.writeInt(fields.size());
+
+        int[] lastDocid = new int[16];
+        float[] maxWeight = new float[16];
+
+        for (String field : fields) {
+
+            double[] norms = lengths.getBM25Norms(field, k1, b, stats.getAvgDocLength(field));
+            List<String> termStrings = new ArrayList<String>();
+            TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+            while (termsEnum.next() != null)
+                termStrings.add(termsEnum.term().utf8ToString());
+
+            termsOut.writeUTF(field);
+            termsOut.writeInt(termStrings.size());
+
+            for (String term : termStrings) {
+
+                //  The last docid and largest weight of each block.
+
+                int numBlocks = 0;
+                int count = 0;
+                int last = -1;
+                double max = 0;
+                PostingCursor postings = LucenePostingCursor.open(term, field, false);
+                while (true) {
+                    int docid = postings.nextDoc();
+                    if (count > 0 && (docid == PostingCursor.NO_MORE_DOCS ||
+                                      count % InvList.BLOCK_SIZE == 0)) {
+                        if (numBlocks == lastDocid.length) {
+                            lastDocid = Arrays.copyOf(lastDocid, 2 * numBlocks);
+                            maxWeight = Arrays.copyOf(maxWeight, 2 * numBlocks);
+                        }
+                        float f = (float) max;
+                        lastDocid[numBlocks] = last;
+                        maxWeight[numBlocks] = (f < max) ? Math.nextUp(f) : f;
+                        numBlocks++;
+                        max = 0;
+                    }
+                    if (docid == PostingCursor.NO_MORE_DOCS)
+                        break;
+                    int tf = postings.freq();
+                    max = Math.max(max, tf / ((double) tf + norms[docid]));
+                    last = docid;
+                    count++;
+                }
+
+                termsOut.writeUTF(term);
+                termsOut.writeInt(numBlocks);
+                termsOut.writeInt(offset);
+                for (int i = 0; i < numBlocks; i++)
+                    blocksOut.writeInt(lastDocid[i]);
+                for (int i = 0; i < numBlocks; i++)
+                    blocksOut.writeFloat(maxWeight[i]);
+                offset += 8 * numBlocks;
+            }
+        }
+        termsOut.close();
+        blocksOut.close();
+    }
+
+    /**
+     *  Open a block-max index.  The dictionary is read into memory and
+     *  the blocks are mapped.
+     *  @param path The directory that holds the block-max index.
+     *  @throws IOException
+     */
+    public BlockMaxIndex(String path) throws IOException {
+
+        File dir = new File(path);
+
+        DataInputStream termsIn = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(new File(dir, "terms.bin"))));
+        this.k1 = termsIn.readDouble();
+        this.b = termsIn.readDouble();
+        int numFields = termsIn.readInt();
+        for (int f = 0; f < numFields; f++) {
+            Map<String, TermBlocks> terms = new HashMap<String, TermBlocks>();
+            String field = termsIn.readUTF();
+            int numTerms = termsIn.readInt();
+            for (int i = 0; i < numTerms; i++) {
+                String term = termsIn.readUTF();
+                TermBlocks t = new TermBlocks();
+                t.numBlocks = termsIn.readInt();
+                t.offset = termsIn.readInt();
+                terms.put(term, t);
+            }
+            this.dictionary.put(field, terms);
+        }
+        termsIn.close();
+
+        this.blocks = CompiledIndex.open(new File(dir, "blocks.bin"), false);
+    }
+
+    /**
+     *  @return True if the index was built for these BM25 parameters.
+     */
+    public boolean matches(double k1, double b) {
+        return (this.k1 == k1) && (this.b == b);
+    }
+
+    /**
+     *  @param terms The query terms.
+     *  @return True if every term that occurs in the index has blocks.
+     *  @throws IOException
+     */
+    public boolean canEvaluate(List<QryopIlTerm> terms) throws IOException {
+        for (QryopIlTerm t : terms) {
+            if (QryEval.STATS.df(t.field, t.term) > 0 && getTermBlocks(t) == null)
+                return false;
+        }
+        return true;
+    }
+
+    private TermBlocks getTermBlocks(QryopIlTerm t) {
+        Map<String, TermBlocks> field = this.dictionary.get(t.field);
+        return (field == null) ? null : field.get(t.term);
+    }
+
+    /**
+     *  @return The number of postings scored by the last evaluation.
+     */
+    public long getPostingsScored() {
+        return this.postingsScored;
+    }
+
+    /**
+     *  @return The number of postings of the query terms that the last
+     *  evaluation did not score.
+     */
+    public long getPostingsSkipped() {
+        return this.postingsSkipped;
+    }
+
+    /**
+     *  Print how many postings were scored and skipped by all of the
+     *  evaluations so far.
+     *  @return void
+     */
+    public void printStats() {
+        System.out.println("Block-max WAND: " + this.totalPostingsScored +
+                           " postings scored, " + this.totalPostingsSkipped + " skipped");
+    }
+
+    /**
+     *  Evaluate a #SUM of terms for the top k documents.
+     *  @param terms The query terms.
+     *  @param r The BM25 retrieval model.
+     *  @param k The number of documents that will be ranked.
+     *  @return The documents that can be in the top k, with their
+     *  scores, in docid order.
+     *  @throws IOException
+     */
+    public QryResult evaluate(List<QryopIlTerm> terms, RetrievalModelBM25 r, int k)
+        throws IOException {
+
+        int n = terms.size();
+        Term[] order = new Term[n];
+        long totalPostings = 0;
+        for (int i = 0; i < n; i++) {
+            order[i] = term(terms.get(i), r);
+            order[i].arg = i;
+            order[i].nextDoc();
+            totalPostings += order[i].df;
+        }
+
+        double[] contribution = new double[n];
+        boolean[] matched = new boolean[n];
+        TopScores top = new TopScores(k);
+        double threshold = Double.NEGATIVE_INFINITY;
+
+        QryResult result = new QryResult();
+        this.postingsScored = 0;
+
+        while (true) {
+
+            //  Keep the terms in docid order (an insertion sort; at
+            //  most a few terms move each time).
+
+            for (int i = 1; i < n; i++) {
+                Term t = order[i];
+                int j = i - 1;
+                while (j >= 0 && order[j].doc > t.doc) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = t;
+            }
+
+            //  Find the pivot: the first term at which the list bounds
+            //  reach the threshold.  Terms on the pivot docid join it.
+
+            double bound = 0.0;
+            int p = -1;
+            for (int i = 0; i < n && order[i].doc != PostingCursor.NO_MORE_DOCS; i++) {
+                bound += order[i].bound;
+                if (bound >= threshold) {
+                    p = i;
+                    break;
+                }
+            }
+            if (p < 0)
+                break;
+            int pivot = order[p].doc;
+            while (p + 1 < n && order[p + 1].doc == pivot)
+                p++;
+
+            //  Check the block bounds at the pivot.
+
+            double blockBound = 0.0;
+            for (int i = 0; i <= p; i++)
+                blockBound += order[i].blockBound(pivot);
+
+            if (blockBound >= threshold) {
+
+                if (order[0].doc == pivot) {
+
+                    //  All of terms 0..p are on the pivot.  Score it, as
+                    //  #SUM does: the last argument first.
+
+                    Arrays.fill(matched, false);
+                    for (int i = 0; i <= p; i++) {
+                        contribution[order[i].arg] = order[i].score();
+                        matched[order[i].arg] = true;
+                    }
+                    double score = 0.0;
+                    for (int i = n - 1; i >= 0; i--)
+                        if (matched[i])
+                            score += contribution[i];
+                    this.postingsScored += p + 1;
+
+                    if (score >= threshold) {
+                        result.docScores.add(pivot, score);
+                        top.add(score);
+                        threshold = top.threshold();
+                    }
+                    for (int i = 0; i <= p; i++)
+                        order[i].nextDoc();
+                } else {
+
+                    //  Move the lagging term with the highest bound to
+                    //  the pivot.
+
+                    Term t = order[0];
+                    for (int i = 1; i <= p && order[i].doc < pivot; i++)
+                        if (order[i].bound > t.bound)
+                            t = order[i];
+                    t.advance(pivot);
+                }
+            } else {
+
+                //  No document before the end of the first of these
+                //  blocks to end (or the next term's docid) can reach the
+                //  threshold.  Move the term with the highest bound past
+                //  it.
+
+                long next = (p + 1 < n) ? order[p + 1].doc : PostingCursor.NO_MORE_DOCS;
+                Term t = order[0];
+                for (int i = 0; i <= p; i++) {
+                    next = Math.min(next, (long) order[i].blockEnd() + 1);
+                    if (order[i].bound > t.bound)
+                        t = order[i];
+                }
+                t.advance((int) Math.min(next, PostingCursor.NO_MORE_DOCS));
+            }
+        }
+
+        this.postingsSkipped = totalPostings - this.postingsScored;
+        this.totalPostingsScored += this.postingsScored;
+        this.totalPostingsSkipped += this.postingsSkipped;
+        return result;
+    }
+
+    /**
+     *  Open the cursor and the blocks of a query term.
+     */
+    private Term term(QryopIlTerm arg, RetrievalModelBM25 r) throws IOException {
+
+        Term t = new Term();
+        InvList list = arg.openLazy();
+        t.df = list.df;
+        if (list.df == 0) {
+            t.postings = new InvList().cursor();
+            return t;
+        }
+
+        int N = QryEval.STATS.numDocs();
+        double avg_doclen = QryEval.STATS.getAvgDocLength(list.field);
+        t.rsj = RetrievalModelBM25.rsj(N, list.df);
+        t.norms = QryEval.dls.getBM25Norms(list.field, r.BM25_k_1, r.BM25_b, avg_doclen);
+        t.postings = list.cursor();
+
+        TermBlocks tb = getTermBlocks(arg);
+        t.numBlocks = tb.numBlocks;
+        t.blockLastDocid = new int[tb.numBlocks];
+        t.blockMaxWeight = new float[tb.numBlocks];
+        ByteBuffer buf = this.blocks.duplicate();
+        buf.position(tb.offset);
+        buf.asIntBuffer().get(t.blockLastDocid);
+        buf.position(tb.offset + 4 * tb.numBlocks);
+        buf.asFloatBuffer().get(t.blockMaxWeight);
+
+        float max = 0;
+        for (int i = 0; i < tb.numBlocks; i++)
+            max = Math.max(max, t.blockMaxWeight[i]);
+        t.bound = Math.max(0.0, t.rsj * max) * BOUND_SLACK;
+        return t;
+    }
+}
@@ -0,0 +1,560 @@
+/**
+ *  A CompiledIndex is a read-only copy of the Lucene index in a format
+ *  that query operators can use directly.  It is produced once, offline,
+ *  by running this class as a program:
+ *
+ *    java CompiledIndex indexPath compiledIndexPath
+ *
+ *  The compiled index is a directory with four kinds of files:
+ *
+ *    terms.bin        For each field: its name, sumTotalTermFreq,
+ *                     docCount, and for each term its string, df, ctf,
+ *                     and a pointer to its inverted list.
+ *    postings.N.bin   Inverted lists in the compressed InvList format
+ *                     (see InvList.write).  A new file is started when
+ *                     the current one reaches POSTINGS_FILE_SIZE, so
+ *                     each file can be mapped as one buffer.
+ *    doclens.bin      A DocLengthStore file.
+ *    externalIds.bin  An ExternalIdTable.
+ *    externalIdIndex.bin  An ExternalIdIndex.
+ *
+ *  At query time the files are memory-mapped, and inverted lists,
+ *  document lengths and external ids are read from the mapped buffers
+ *  without going through Lucene.  In heap mode the files are instead
+ *  read completely into arrays, which costs memory but avoids page
+ *  faults.  The term dictionary is always kept on the heap.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+public class CompiledIndex {
+
+    //  Postings files are limited to this size so that they can be mapped.
+
+    static final long POSTINGS_FILE_SIZE = 1L << 30;
+
+    //  The term dictionary of one field.
+
+    private static class FieldDictionary {
+        long sumTotalTermFreq;
+        int docCount;
+        Map<String, Integer> termIds = new HashMap<String, Integer>();
+        int[] df;
+        int[] ctf;
+        long[] pointer;		// (postings file << 32) | offset
+    }
+
+    private Map<String, FieldDictionary> dictionary = new HashMap<String, FieldDictionary>();
+    private ByteBuffer[] postings;
+
+    //  Document lengths and external ids.
+
+    private DocLengthStore docLengths;
+    private ExternalIdTable externalIds;
+    private ExternalIdIndex externalIdIndex;
+
+    /**
+     *  Compile a Lucene index.
+     *  @param args The Lucene index path and the output directory.
+     *  @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.err.println("Usage:  java CompiledIndex indexPath compiledIndexPath");
+            System.exit(1);
+        }
+
+        QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+        compile(args[1]);
+    }
+
+    /**
+     *  Write a compiled copy of the index that QryEval.READER reads.
+     *  @param path The directory to write the compiled index to.
+     *  @throws IOException
+     */
+    public static void compile(String path) throws IOException {
+
+        File dir = new File(path);
+        dir.mkdirs();
+
+        IndexReader reader = QryEval.READER;
+
+        //  Only fields with positions have inverted lists that query
+        //  operators can use.
+
+        List<String> fields = new ArrayList<String>();
+        for (FieldInfo fi : MultiFields.getMergedFieldInfos(reader)) {
+            if (fi.isIndexed() &&
+                fi.getIndexOptions().compareTo(FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0)
+                fields.add(fi.name);
+        }
+
+        //  Term dictionary and postings.
+
+        DataOutputStream termsOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, "terms.bin"))));
+        PostingsFiles postings = new PostingsFiles(dir, "postings");
+
+        termsOut.writeInt(fields.size());
+
+        for (String field : fields) {
+
+            Terms terms = MultiFields.getTerms(reader, field);
+            List<String> termStrings = new ArrayList<String>();
+            TermsEnum termsEnum = terms.iterator(null);
+            while (termsEnum.next() != null)
+                termStrings.add(termsEnum.term().utf8ToString());
+
+            termsOut.writeUTF(field);
+            termsOut.writeLong(reader.getSumTotalTermFreq(field));
+            termsOut.writeInt(reader.getDocCount(field));
+            termsOut.writeInt(termStrings.size());
+
+            for (String term : termStrings) {
+
+                InvList list = new InvList(term, field);
+
+                long pointer = postings.startRecord();
+
+                termsOut.writeUTF(term);
+                termsOut.writeInt(list.df);
+                termsOut.writeInt(list.ctf);
+                termsOut.writeLong(pointer);
+
+                list.write(postings.out);
+            }
+        }
+        termsOut.close();
+        postings.close();
+
+        //  Document lengths.
+
+        new DocLengthStore(reader).write(new File(dir, "doclens.bin"));
+
+        //  External ids.
+
+        ExternalIdTable.write(reader, new File(dir, "externalIds.bin"));
+        ExternalIdIndex.build(reader, new ExternalIdTable(new File(dir, "externalIds.bin"), true))
+            .write(new File(dir, "externalIdIndex.bin"));
+    }
+
+    /**
+     *  Open a compiled index.
+     *  @param path The directory that holds the compiled index.
+     *  @param heap If true, read everything into memory instead of
+     *  mapping the files.
+     *  @throws IOException
+     */
+    public CompiledIndex(String path, boolean heap) throws IOException {
+
+        File dir = new File(path);
+
+        //  Term dictionary.
+
+        DataInputStream termsIn = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(new File(dir, "terms.bin"))));
+        int numFields = termsIn.readInt();
+        for (int f = 0; f < numFields; f++) {
+            FieldDictionary d = new FieldDictionary();
+            String field = termsIn.readUTF();
+            d.sumTotalTermFreq = termsIn.readLong();
+            d.docCount = termsIn.readInt();
+            int numTerms = termsIn.readInt();
+            d.df = new int[numTerms];
+            d.ctf = new int[numTerms];
+            d.pointer = new long[numTerms];
+            for (int i = 0; i < numTerms; i++) {
+                d.termIds.put(termsIn.readUTF(), i);
+                d.df[i] = termsIn.readInt();
+                d.ctf[i] = termsIn.readInt();
+                d.pointer[i] = termsIn.readLong();
+            }
+            this.dictionary.put(field, d);
+        }
+        termsIn.close();
+
+        //  Postings.
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; new File(dir, "postings." + i + ".bin").exists(); i++)
+            buffers.add(open(new File(dir, "postings." + i + ".bin"), heap));
+        this.postings = buffers.toArray(new ByteBuffer[buffers.size()]);
+
+        //  Document lengths.
+
+        this.docLengths = new DocLengthStore(new File(dir, "doclens.bin"), heap);
+
+        //  External ids.
+
+        this.externalIds = new ExternalIdTable(new File(dir, "externalIds.bin"), heap);
+        File index = new File(dir, "externalIdIndex.bin");
+        if (index.exists())
+            this.externalIdIndex = ExternalIdIndex.open(QryEval.READER, this.externalIds,
+                                                        index.getPath());
+    }
+
+    /**
+     *  Map a file, or read it into a heap buffer.
+     */
+    static ByteBuffer open(File file, boolean heap) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        ByteBuffer buf;
+
+        try {
+            if (heap) {
+                byte[] bytes = new byte[(int) channel.size()];
+                raf.readFully(bytes);
+                buf = ByteBuffer.wrap(bytes);
+            } else {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } finally {
+            raf.close();
+        }
+        return buf;
+    }
+
+    /**
+     *  Read a string written by DataOutputStream.writeUTF.
+     */
+    static String readUTF(ByteBuffer buf) throws IOException {
+        byte[] bytes = new byte[2 + (buf.getShort(buf.position()) & 0xFFFF)];
+        buf.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     *  Return the buffer positioned at the start of an inverted list,
+     *  or null if the term does not occur in the field.
+     */
+    private ByteBuffer find(String termString, String fieldString) {
+
+        FieldDictionary d = this.dictionary.get(fieldString);
+        if (d == null)
+            return null;
+
+        Integer id = d.termIds.get(termString);
+        if (id == null)
+            return null;
+
+        long pointer = d.pointer[id];
+        ByteBuffer buf = this.postings[(int) (pointer >>> 32)].duplicate();
+        buf.position((int) (pointer & 0xFFFFFFFFL));
+        return buf;
+    }
+
+    /**
+     *  Fetch an inverted list.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param lazy If true, return a lazy inverted list that reads
+     *  the mapped postings through its cursor.
+     *  @param positions If false, read only docids and tfs.
+     *  @return The inverted list.  It is empty if the term does not occur.
+     */
+    public InvList getInvList(String termString, String fieldString, boolean lazy,
+                              boolean positions) {
+
+        ByteBuffer buf = find(termString, fieldString);
+
+        if (buf == null)
+            return new InvList(fieldString);
+
+        if (lazy) {
+            FieldDictionary d = this.dictionary.get(fieldString);
+            int id = d.termIds.get(termString);
+            return new InvList(termString, fieldString, d.df[id], d.ctf[id], this, positions);
+        }
+        return new InvList(fieldString, buf, positions);
+    }
+
+    /**
+     *  Open a cursor that decodes an inverted list in place.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param positions If false, the cursor never touches the positions.
+     *  @return The cursor, or null if the term does not occur.
+     */
+    public PostingCursor cursor(String termString, String fieldString, boolean positions) {
+        ByteBuffer buf = find(termString, fieldString);
+        return (buf == null) ? null : new Cursor(buf, positions);
+    }
+
+    /**
+     *  @return The document lengths.
+     */
+    public DocLengthStore getDocLengthStore() {
+        return this.docLengths;
+    }
+
+    /**
+     *  @return The external id of a document.
+     */
+    public String getExternalDocid(int docid) {
+        return this.externalIds.get(docid);
+    }
+
+    /**
+     *  @return The table of external ids.
+     */
+    public ExternalIdTable getExternalIdTable() {
+        return this.externalIds;
+    }
+
+    /**
+     *  @return The external id index, or null if the compiled index
+     *  was written without one.
+     */
+    public ExternalIdIndex getExternalIdIndex() {
+        return this.externalIdIndex;
+    }
+
+    /**
+     *  @return The number of documents, including deleted ones.
+     */
+    public int maxDoc() {
+        return this.docLengths.maxDoc();
+    }
+
+    /**
+     *  @return The total number of term occurrences in a field.
+     */
+    public long getSumTotalTermFreq(String fieldString) {
+        FieldDictionary d = this.dictionary.get(fieldString);
+        return (d == null) ? 0 : d.sumTotalTermFreq;
+    }
+
+    /**
+     *  @return The number of documents that have a field.
+     */
+    public int getDocCount(String fieldString) {
+        FieldDictionary d = this.dictionary.get(fieldString);
+        return (d == null) ? 0 : d.docCount;
+    }
+
+    /**
+     *  A cursor that decodes a serialized InvList straight from the
+     *  (possibly mapped) buffer.  It mirrors InvList.Cursor.
+     */
+    private static class Cursor extends PostingCursor {
+
+        private ByteBuffer buf;
+        private boolean positions;
+        private int df;
+        private int numBlocks;
+        private int lastDocidStart;	// offsets of the sections of the list
+        private int docOffsetStart;
+        private int posOffsetStart;
+        private int docBytesStart;
+        private int posBytesStart;
+
+        private int index = -1;
+        private int docid = -1;
+        private int freq = 0;
+        private int docOffset;
+        private int posOffset;
+        private int posRead = 0;
+        private int posLast = 0;
+
+        Cursor(ByteBuffer buf, boolean positions) {
+            int start = buf.position();
+            this.buf = buf;
+            this.positions = positions;
+            this.df = buf.getInt(start);
+            this.numBlocks = buf.getInt(start + 8);
+            int docBytesLength = buf.getInt(start + 12);
+            this.lastDocidStart = start + 20;
+            this.docOffsetStart = this.lastDocidStart + 4 * this.numBlocks;
+            this.posOffsetStart = this.docOffsetStart + 4 * this.numBlocks;
+            this.docBytesStart = this.posOffsetStart + 4 * this.numBlocks;
+            this.posBytesStart = this.docBytesStart + docBytesLength;
+            this.docOffset = this.docBytesStart;
+            this.posOffset = this.posBytesStart;
+        }
+
+        public int docID() {
+            return this.docid;
+        }
+
+        public int nextDoc() {
+
+            if (this.index >= this.df)
+                return this.docid;
+
+            this.index ++;
+
+            if (this.index == this.df) {
+                this.docid = NO_MORE_DOCS;
+                return this.docid;
+            }
+
+            //  Skip the unread positions of the previous document.
+
+            if (this.positions && (this.index > 0)) {
+                int n = this.freq - this.posRead;
+                while (n > 0) {
+                    if ((this.buf.get(this.posOffset ++) & 0x80) == 0)
+                        n --;
+                }
+            }
+
+            if (this.index % InvList.BLOCK_SIZE == 0)
+                this.docid = (this.index == 0) ? -1 :
+                    this.buf.getInt(this.lastDocidStart + 4 * (this.index / InvList.BLOCK_SIZE - 1));
+
+            this.docid += readVInt(true);
+            this.freq = readVInt(true);
+            this.posRead = 0;
+            this.posLast = 0;
+            return this.docid;
+        }
+
+        public int advance(int target) {
+
+            if (this.docid >= target)
+                return this.docid;
+
+            //  Skip the blocks that end before target.
+
+            int b = (this.index < 0) ? 0 : this.index / InvList.BLOCK_SIZE;
+            int skipTo = b;
+            while ((skipTo < this.numBlocks) &&
+                   (this.buf.getInt(this.lastDocidStart + 4 * skipTo) < target))
+                skipTo ++;
+
+            if (skipTo == this.numBlocks) {
+                this.index = this.df;
+                this.docid = NO_MORE_DOCS;
+                return this.docid;
+            }
+
+            if (skipTo != b) {
+                this.index = skipTo * InvList.BLOCK_SIZE - 1;
+                this.docOffset = this.docBytesStart + this.buf.getInt(this.docOffsetStart + 4 * skipTo);
+                this.posOffset = this.posBytesStart + this.buf.getInt(this.posOffsetStart + 4 * skipTo);
+                this.freq = 0;
+                this.posRead = 0;
+                this.nextDoc();
+            }
+
+            while (this.docid < target)
+                this.nextDoc();
+            return this.docid;
+        }
+
+        public int freq() {
+            return this.freq;
+        }
+
+        public int nextPosition() {
+            this.posRead ++;
+            this.posLast += readVInt(false);
+            return this.posLast;
+        }
+
+        private int readVInt(boolean fromDocBytes) {
+            int offset = fromDocBytes ? this.docOffset : this.posOffset;
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.buf.get(offset ++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (fromDocBytes)
+                this.docOffset = offset;
+            else
+                this.posOffset = offset;
+            return value;
+        }
+    }
+
+    /**
+     *  Writes records to a series of files, prefix.0.bin, prefix.1.bin,
+     *  and so on.  The next file is started once the current one
+     *  reaches POSTINGS_FILE_SIZE, so that an offset in a file fits in
+     *  an int.  No file is created until the first record is started.
+     */
+    static class PostingsFiles {
+
+        private File dir;
+        private String prefix;
+        private int file = -1;
+        private CountingOutputStream bytes = null;
+        DataOutputStream out = null;	// where the current record goes
+
+        /**
+         *  @param dir The directory to write the files to.
+         *  @param prefix The name of the files, before the file number.
+         */
+        PostingsFiles(File dir, String prefix) {
+            this.dir = dir;
+            this.prefix = prefix;
+        }
+
+        /**
+         *  Start a record, in the next file if the current one is full.
+         *  The record is then written to out.
+         *  @return A pointer to the record: (file << 32) | offset.
+         *  @throws IOException
+         */
+        long startRecord() throws IOException {
+            if ((this.out == null) || (this.bytes.count >= POSTINGS_FILE_SIZE)) {
+                if (this.out != null)
+                    this.out.close();
+                this.file ++;
+                this.bytes = new CountingOutputStream(new FileOutputStream(
+                    new File(this.dir, this.prefix + "." + this.file + ".bin")));
+                this.out = new DataOutputStream(new BufferedOutputStream(this.bytes));
+            }
+            this.out.flush();
+            return ((long) this.file << 32) | this.bytes.count;
+        }
+
+        /**
+         *  Close the current file, if any.
+         *  @throws IOException
+         */
+        void close() throws IOException {
+            if (this.out != null)
+                this.out.close();
+        }
+    }
+
+    /**
+     *  An output stream that counts the bytes written through it.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count ++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
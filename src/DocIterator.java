@@ -0,0 +1,264 @@
+/**
+ *  A DocIterator is a query operator compiled for document-at-a-time
+ *  evaluation without intermediate score lists.  It iterates, in docid
+ *  order, over the documents that the operator gives a score, and
+ *  scores the current one on demand.  Score operators build their
+ *  iterator from the iterators of their arguments (see
+ *  QryopSl.iterator), so a whole query tree is evaluated by pulling
+ *  documents from the root, with state only for the current document
+ *  of each operator.
+ *
+ *  An iterator may stop at documents that it does not match, because
+ *  checking them is expensive (e.g., a positional operator, whose
+ *  arguments' positions must be read).  Then nextDoc and advance are
+ *  an approximation, and matches() confirms the current document.  An
+ *  operator calls matches() on an argument before it uses the
+ *  argument's score, and a conjunction calls it only after its cheaper
+ *  arguments have matched.
+ *
+ *  collect() is the top-k collector that drives a root iterator.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public abstract class DocIterator {
+
+    public static final int NO_MORE_DOCS = PostingCursor.NO_MORE_DOCS;
+
+    protected int doc = -1;
+
+    /**
+     *  @return The current docid, -1 before the first call to nextDoc,
+     *  or NO_MORE_DOCS after the last document.
+     */
+    public int docID() {
+        return this.doc;
+    }
+
+    /**
+     *  Move to the next document.
+     *  @return The new docid, or NO_MORE_DOCS.
+     *  @throws IOException
+     */
+    public abstract int nextDoc() throws IOException;
+
+    /**
+     *  Move to the first document whose docid is at least target.  The
+     *  iterator must not be past target already.
+     *  @param target The docid to advance to.
+     *  @return The new docid, or NO_MORE_DOCS.
+     *  @throws IOException
+     */
+    public abstract int advance(int target) throws IOException;
+
+    /**
+     *  @return The score of the current document.
+     *  @throws IOException
+     */
+    public abstract double score() throws IOException;
+
+    /**
+     *  The score of a document that the operator does not match, as
+     *  QryopSl.getDefaultScore gives it.
+     *  @param docid An internal docid.
+     *  @return The default score.
+     *  @throws IOException
+     */
+    public double defaultScore(int docid) throws IOException {
+        return 0.0;
+    }
+
+    /**
+     *  @return An estimate of the number of documents the iterator
+     *  visits, used to order the arguments of a conjunction.
+     */
+    public abstract long cost();
+
+    /**
+     *  Confirm that the iterator matches the current document.  It
+     *  must be called before score().
+     *  @return True if the current document matches.
+     *  @throws IOException
+     */
+    public boolean matches() throws IOException {
+        return true;
+    }
+
+    /**
+     *  @return An estimate of the cost of matches(), 0 if the iterator
+     *  only stops at documents that it matches.
+     */
+    public float matchCost() {
+        return 0;
+    }
+
+    /**
+     *  Iterate over all of the documents of an iterator and keep the
+     *  ones that can be among the k highest scoring: those whose score
+     *  is at least the k'th best score seen when they are reached.
+     *  rank() makes the final selection.
+     *  @param it The root iterator.
+     *  @param k The number of documents that will be ranked.
+     *  @return The documents that were kept, with their scores, in
+     *  docid order.
+     *  @throws IOException
+     */
+    public static QryResult collect(DocIterator it, int k) throws IOException {
+        QryResult result = new QryResult();
+        TopScores top = new TopScores(k);
+        while (it.nextDoc() != NO_MORE_DOCS) {
+            if (! it.matches())
+                continue;
+            double score = it.score();
+            if (score >= top.threshold()) {
+                result.docScores.add(it.docID(), score);
+                top.add(score);
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  An iterator over the documents that match any of its arguments.
+     */
+    public static abstract class Union extends DocIterator {
+
+        protected DocIterator[] args;
+
+        protected Union(DocIterator[] args) {
+            this.args = args;
+        }
+
+        /**
+         *  @param i The index of an argument.
+         *  @return True if argument i matches the current document.
+         */
+        protected boolean matches(int i) throws IOException {
+            return this.args[i].docID() == this.doc && this.args[i].matches();
+        }
+
+        public boolean matches() throws IOException {
+            for (int i = 0; i < this.args.length; i++)
+                if (matches(i))
+                    return true;
+            return false;
+        }
+
+        public float matchCost() {
+            float cost = 0;
+            for (DocIterator arg : this.args)
+                cost += arg.matchCost();
+            return cost;
+        }
+
+        public int nextDoc() throws IOException {
+            int min = NO_MORE_DOCS;
+            for (DocIterator arg : this.args) {
+                if (arg.docID() <= this.doc)
+                    arg.nextDoc();
+                min = Math.min(min, arg.docID());
+            }
+            return (this.doc = min);
+        }
+
+        public int advance(int target) throws IOException {
+            int min = NO_MORE_DOCS;
+            for (DocIterator arg : this.args) {
+                if (arg.docID() < target)
+                    arg.advance(target);
+                min = Math.min(min, arg.docID());
+            }
+            return (this.doc = min);
+        }
+
+        public long cost() {
+            long cost = 0;
+            for (DocIterator arg : this.args)
+                cost += arg.cost();
+            return cost;
+        }
+    }
+
+    /**
+     *  An iterator over the documents that match all of its arguments.
+     *  The arguments are kept in the order they were given, for
+     *  scoring; they are advanced cheapest first, and the ones that
+     *  must confirm their documents are asked cheapest first.
+     */
+    public static abstract class Conjunction extends DocIterator {
+
+        protected DocIterator[] args;
+        private DocIterator[] byCost;
+        private DocIterator[] byMatchCost;	// the args with a match cost
+
+        protected Conjunction(DocIterator[] args) {
+            this.args = args;
+            this.byCost = args.clone();
+            Arrays.sort(this.byCost, new Comparator<DocIterator>() {
+                public int compare(DocIterator a, DocIterator b) {
+                    long x = a.cost();
+                    long y = b.cost();
+                    return (x < y) ? -1 : ((x == y) ? 0 : 1);
+                }
+            });
+
+            List<DocIterator> confirm = new ArrayList<DocIterator>();
+            for (DocIterator arg : args)
+                if (arg.matchCost() > 0)
+                    confirm.add(arg);
+            Collections.sort(confirm, new Comparator<DocIterator>() {
+                public int compare(DocIterator a, DocIterator b) {
+                    return Float.compare(a.matchCost(), b.matchCost());
+                }
+            });
+            this.byMatchCost = confirm.toArray(new DocIterator[confirm.size()]);
+        }
+
+        public boolean matches() throws IOException {
+            for (DocIterator arg : this.byMatchCost)
+                if (! arg.matches())
+                    return false;
+            return true;
+        }
+
+        public float matchCost() {
+            float cost = 0;
+            for (DocIterator arg : this.byMatchCost)
+                cost += arg.matchCost();
+            return cost;
+        }
+
+        public int nextDoc() throws IOException {
+            if (this.doc == NO_MORE_DOCS)
+                return NO_MORE_DOCS;
+            return advance(this.doc + 1);
+        }
+
+        public int advance(int target) throws IOException {
+
+            DocIterator lead = this.byCost[0];
+            int candidate = (lead.docID() < target) ? lead.advance(target) : lead.docID();
+
+            NEXT_CANDIDATE:
+            while (candidate != NO_MORE_DOCS) {
+                for (int i = 1; i < this.byCost.length; i++) {
+                    DocIterator other = this.byCost[i];
+                    int d = (other.docID() < candidate) ? other.advance(candidate) : other.docID();
+                    if (d > candidate) {
+                        candidate = lead.advance(d);
+                        continue NEXT_CANDIDATE;
+                    }
+                }
+                break;
+            }
+            return (this.doc = candidate);
+        }
+
+        public long cost() {
+            return this.byCost[0].cost();
+        }
+    }
+}
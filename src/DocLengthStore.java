@@ -2,7 +2,8 @@
  *  Copyright (c) 2013, Carnegie Mellon University.  All Rights Reserved.
  */
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.*;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.lucene.index.IndexReader;
@@ -12,20 +13,113 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ *
+ * The lengths of every field are loaded once, into an int[] per field,
+ * so a lookup does not go through Lucene's norms.  They can also be
+ * written to a file (the number of fields, maxDoc, and for each field
+ * its name and an int per document) that is memory-mapped when it is
+ * opened.
+ *
+ * For BM25 the store also keeps, per field, the length normalization
+ * k1*((1-b)+b*len/avgdl) of every document for the active parameters.
  */
 public class DocLengthStore  {
 
-    private IndexReader reader;
-    private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+    private int maxDoc;
+    private Map<String, int[]> lengths = new HashMap<String, int[]>();
+    private Map<String, IntBuffer> mappedLengths = new HashMap<String, IntBuffer>();
+
+    //  BM25 length normalization, per field, and the parameters it is for.
+
+    private static class BM25Norms {
+        double k1, b, avgdl;
+        double[] norms;
+    }
+
+    private Map<String, BM25Norms> bm25Norms = new HashMap<String, BM25Norms>();
 
     /**
      * @param reader IndexReader object created in {@link QryEval}.
      */
     public DocLengthStore(IndexReader reader) throws IOException {
-        this.reader = reader;
+        this.maxDoc = reader.maxDoc();
         for (String field : MultiFields.getIndexedFields(reader)) {
-            this.values.put(field, MultiDocValues.getNormValues(reader, field));
+            NumericDocValues values = MultiDocValues.getNormValues(reader, field);
+            if (values == null)
+                continue;
+            int[] a = new int[this.maxDoc];
+            for (int docid = 0; docid < this.maxDoc; docid++)
+                a[docid] = (int) values.get(docid);
+            this.lengths.put(field, a);
+        }
+    }
+
+    /**
+     * @param file A file written by write().
+     * @param heap If true, read the file into int arrays instead of
+     * mapping it.
+     */
+    public DocLengthStore(File file, boolean heap) throws IOException {
+        ByteBuffer buf = CompiledIndex.open(file, heap);
+        int numFields = buf.getInt();
+        this.maxDoc = buf.getInt();
+        for (int f = 0; f < numFields; f++) {
+            String field = CompiledIndex.readUTF(buf);
+            IntBuffer values = ((ByteBuffer) buf.slice().limit(4 * this.maxDoc)).asIntBuffer();
+            if (heap) {
+                int[] a = new int[this.maxDoc];
+                values.get(a);
+                this.lengths.put(field, a);
+            } else {
+                this.mappedLengths.put(field, values);
+            }
+            buf.position(buf.position() + 4 * this.maxDoc);
+        }
+    }
+
+    /**
+     * Open the document length file at path, writing it first if it
+     * does not exist.
+     *
+     * @param reader IndexReader object created in {@link QryEval}.
+     * @param path The document length file.
+     * @return The store, with the file mapped.
+     */
+    public static DocLengthStore open(IndexReader reader, String path) throws IOException {
+        File file = new File(path);
+        if (! file.exists())
+            new DocLengthStore(reader).write(file);
+        return new DocLengthStore(file, false);
+    }
+
+    /**
+     * Write the document lengths to a file.
+     *
+     * @param file The file to write.
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+        out.writeInt(this.lengths.size() + this.mappedLengths.size());
+        out.writeInt(this.maxDoc);
+        for (String field : this.lengths.keySet()) {
+            out.writeUTF(field);
+            for (int docid = 0; docid < this.maxDoc; docid++)
+                out.writeInt(this.lengths.get(field)[docid]);
+        }
+        for (String field : this.mappedLengths.keySet()) {
+            out.writeUTF(field);
+            for (int docid = 0; docid < this.maxDoc; docid++)
+                out.writeInt(this.mappedLengths.get(field).get(docid));
         }
+        out.close();
+    }
+
+    /**
+     * @return The number of documents, including deleted ones.
+     */
+    public int maxDoc() {
+        return this.maxDoc;
     }
 
     /**
@@ -37,6 +131,59 @@ public class DocLengthStore  {
      */
     public long getDocLength(String fieldname, int docid) throws IOException {
         //System.out.println("fieldname : " + fieldname + " docid " + docid );
-    	return values.get(fieldname).get(docid);
+        int[] a = lengths.get(fieldname);
+        if (a != null)
+            return a[docid];
+    	return mappedLengths.get(fieldname).get(docid);
+    }
+
+    /**
+     * Returns the lengths of a field in several documents.
+     *
+     * @param fieldname Name of field to access lengths.
+     * @param docids The internal docids in the lucene index.
+     * @return The lengths, in the same order as the docids.
+     */
+    public int[] getDocLengths(String fieldname, int[] docids) throws IOException {
+        int[] result = new int[docids.length];
+        int[] a = lengths.get(fieldname);
+        if (a != null) {
+            for (int i = 0; i < docids.length; i++)
+                result[i] = a[docids[i]];
+        } else {
+            IntBuffer values = mappedLengths.get(fieldname);
+            for (int i = 0; i < docids.length; i++)
+                result[i] = values.get(docids[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the BM25 length normalization k1*((1-b)+b*len/avgdl) of
+     * every document for a field.  The array is computed on the first
+     * call and again only when the parameters change.
+     *
+     * @param fieldname Name of field.
+     * @param k1 The BM25 k1 parameter.
+     * @param b The BM25 b parameter.
+     * @param avgdl The average length of the field.
+     * @return The normalization of each document, indexed by docid.
+     */
+    public synchronized double[] getBM25Norms(String fieldname, double k1, double b,
+                                              double avgdl) throws IOException {
+        BM25Norms n = bm25Norms.get(fieldname);
+        if (n == null || n.k1 != k1 || n.b != b || n.avgdl != avgdl) {
+            n = new BM25Norms();
+            n.k1 = k1;
+            n.b = b;
+            n.avgdl = avgdl;
+            n.norms = new double[this.maxDoc];
+            for (int docid = 0; docid < this.maxDoc; docid++) {
+                long doclen = getDocLength(fieldname, docid);
+                n.norms[docid] = k1 * ((1 - b) + b * doclen / avgdl);
+            }
+            bm25Norms.put(fieldname, n);
+        }
+        return n.norms;
     }
 }
@@ -0,0 +1,121 @@
+/**
+ *  A DocidHeap is a min-heap of query arguments keyed by the docid
+ *  each one is at, in primitive arrays.  Union operators use it to
+ *  find the next docid in O(log n) for n arguments instead of scanning
+ *  all of them.  Arguments on the same docid come out highest argument
+ *  index first, which is the order the scan-based merges visited them.
+ *  #WINDOW keys it by position instead, to find an argument's next
+ *  position within a document.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+public class DocidHeap {
+
+    private int[] args;		// argument indexes, in heap order
+    private int[] docids;	// the docid of each heap entry
+    private int size = 0;
+
+    /**
+     *  @param capacity The number of arguments.
+     */
+    public DocidHeap(int capacity) {
+        this.args = new int[Math.max(capacity, 1)];
+        this.docids = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     *  Add an argument.
+     *  @param arg The argument's index.
+     *  @param docid The docid it is at.
+     *  @return void
+     */
+    public void add(int arg, int docid) {
+        int i = this.size++;
+        while (i > 0 && before(arg, docid, (i - 1) / 2)) {
+            this.args[i] = this.args[(i - 1) / 2];
+            this.docids[i] = this.docids[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        this.args[i] = arg;
+        this.docids[i] = docid;
+    }
+
+    /**
+     *  Remove all of the arguments.
+     *  @return void
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     *  @return The number of arguments in the heap.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  @return The index of the argument with the smallest docid.
+     */
+    public int topArg() {
+        return this.args[0];
+    }
+
+    /**
+     *  @return The smallest docid.
+     */
+    public int topDocid() {
+        return this.docids[0];
+    }
+
+    /**
+     *  The top argument moved to a new docid.
+     *  @param docid Its new docid.
+     *  @return void
+     */
+    public void updateTop(int docid) {
+        this.docids[0] = docid;
+        siftDown();
+    }
+
+    /**
+     *  Remove the top argument, because it has no more documents.
+     *  @return void
+     */
+    public void pop() {
+        this.size--;
+        if (this.size > 0) {
+            this.args[0] = this.args[this.size];
+            this.docids[0] = this.docids[this.size];
+            siftDown();
+        }
+    }
+
+    /**
+     *  @return True if (arg, docid) comes before heap entry i.
+     */
+    private boolean before(int arg, int docid, int i) {
+        return (docid < this.docids[i]) ||
+            (docid == this.docids[i] && arg > this.args[i]);
+    }
+
+    private void siftDown() {
+        int arg = this.args[0];
+        int docid = this.docids[0];
+        int i = 0;
+        while (2 * i + 1 < this.size) {
+            int c = 2 * i + 1;
+            if (c + 1 < this.size && before(this.args[c + 1], this.docids[c + 1], c))
+                c++;
+            if (before(arg, docid, c))
+                break;
+            this.args[i] = this.args[c];
+            this.docids[i] = this.docids[c];
+            i = c;
+        }
+        this.args[i] = arg;
+        this.docids[i] = docid;
+    }
+}
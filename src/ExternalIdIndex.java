@@ -0,0 +1,149 @@
+/**
+ *  An ExternalIdIndex maps external ids to internal docids.  It is the
+ *  list of live docids sorted by external id, searched with binary
+ *  search; the external ids themselves are read from an
+ *  ExternalIdTable, so the index adds only 4 bytes per document.
+ *
+ *  The sorted docids can be written to a file that is memory-mapped
+ *  when it is opened, so later runs do not have to sort again.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+public class ExternalIdIndex {
+
+    private ExternalIdTable table;
+    private int size;
+    private int[] sorted;		// built in memory
+    private IntBuffer sortedBuffer;	// mapped from a file
+
+    /**
+     *  Build an index in memory.
+     *  @param reader The index; deleted documents are left out.
+     *  @param table The external ids of the documents.
+     *  @return The index.
+     */
+    public static ExternalIdIndex build(IndexReader reader, final ExternalIdTable table) {
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        List<Integer> docids = new ArrayList<Integer>(table.maxDoc());
+        for (int docid = 0; docid < table.maxDoc(); docid++)
+            if ((liveDocs == null) || liveDocs.get(docid))
+                docids.add(docid);
+
+        Collections.sort(docids, new Comparator<Integer>() {
+            public int compare(Integer d1, Integer d2) {
+                return table.compare(d1, d2);
+            }
+        });
+
+        ExternalIdIndex index = new ExternalIdIndex();
+        index.table = table;
+        index.size = docids.size();
+        index.sorted = new int[index.size];
+        for (int i = 0; i < index.size; i++)
+            index.sorted[i] = docids.get(i);
+        return index;
+    }
+
+    /**
+     *  Open the index file at path.  If there is no such file, the
+     *  index is built and written first.
+     *  @param reader The index; deleted documents are left out.
+     *  @param table The external ids of the documents.
+     *  @param path The index file.
+     *  @return The index, with the file mapped.
+     *  @throws IOException
+     */
+    public static ExternalIdIndex open(IndexReader reader, ExternalIdTable table, String path)
+        throws IOException {
+
+        File file = new File(path);
+        if (! file.exists())
+            build(reader, table).write(file);
+
+        ExternalIdIndex index = new ExternalIdIndex();
+        index.table = table;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            index.size = buf.getInt();
+            index.sortedBuffer = buf.slice().asIntBuffer();
+        } finally {
+            raf.close();
+        }
+        return index;
+    }
+
+    /**
+     *  Write the sorted docids: their number, then the docids.
+     *  @param file The file to write.
+     *  @throws IOException
+     */
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+        out.writeInt(this.size);
+        for (int i = 0; i < this.size; i++)
+            out.writeInt(getSorted(i));
+        out.close();
+    }
+
+    private int getSorted(int i) {
+        return (this.sorted != null) ? this.sorted[i] : this.sortedBuffer.get(i);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *  @param externalId An external document id.
+     *  @return The internal docid, or -1 if there is no such document.
+     */
+    public int get(String externalId) {
+
+        byte[] key = utf8(externalId);
+        int lo = 0;
+        int hi = this.size - 1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int docid = getSorted(mid);
+            int c = this.table.compare(docid, key);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return docid;
+        }
+        return -1;
+    }
+
+    /**
+     *  Look up several external ids at once.
+     *  @param externalIds External document ids.
+     *  @param n The number of ids to look up.
+     *  @return The internal docids (-1 for unknown ids), in the same order.
+     */
+    public int[] get(String[] externalIds, int n) {
+        int[] docids = new int[n];
+        for (int i = 0; i < n; i++)
+            docids[i] = get(externalIds[i]);
+        return docids;
+    }
+}
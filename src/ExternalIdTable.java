@@ -0,0 +1,205 @@
+/**
+ *  An ExternalIdTable maps internal docids to external ids without
+ *  reading stored documents.  It is an array of maxDoc+1 offsets into
+ *  a blob of UTF-8 bytes; the external id of document d is the bytes
+ *  from offsets[d] to offsets[d+1].
+ *
+ *  The table is built with one pass over the stored externalId field.
+ *  It can be written to a file (maxDoc, the offsets, the bytes) that
+ *  is memory-mapped or read into memory when it is opened, so later
+ *  runs skip the pass.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.IndexReader;
+
+public class ExternalIdTable {
+
+    private static final Set<String> FIELDS = Collections.singleton("externalId");
+
+    private int maxDoc;
+    private int[] offsets;		// in heap mode
+    private IntBuffer offsetBuffer;	// in mapped mode
+    private ByteBuffer bytes;
+
+    /**
+     *  Build a table in memory.
+     *  @param reader The index to read the external ids from.
+     *  @return The table.
+     *  @throws IOException
+     */
+    public static ExternalIdTable build(IndexReader reader) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        write(reader, out);
+        out.close();
+        return new ExternalIdTable(ByteBuffer.wrap(buffer.toByteArray()), true);
+    }
+
+    /**
+     *  Open the table file at path.  If there is no such file, it is
+     *  built from the index and written first.
+     *  @param reader The index to read the external ids from.
+     *  @param path The table file.
+     *  @return The table, with the file mapped.
+     *  @throws IOException
+     */
+    public static ExternalIdTable open(IndexReader reader, String path) throws IOException {
+        File file = new File(path);
+        if (! file.exists())
+            write(reader, file);
+        return new ExternalIdTable(file, false);
+    }
+
+    /**
+     *  Write the table of an index to a file.
+     *  @param reader The index to read the external ids from.
+     *  @param file The file to write.
+     *  @throws IOException
+     */
+    public static void write(IndexReader reader, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+        write(reader, out);
+        out.close();
+    }
+
+    private static void write(IndexReader reader, DataOutputStream out) throws IOException {
+
+        int maxDoc = reader.maxDoc();
+        ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+        int[] idOffsets = new int[maxDoc + 1];
+
+        for (int docid = 0; docid < maxDoc; docid++) {
+            String eid = reader.document(docid, FIELDS).get("externalId");
+            if (eid != null)
+                idBytes.write(eid.getBytes("UTF-8"));
+            idOffsets[docid + 1] = idBytes.size();
+        }
+
+        out.writeInt(maxDoc);
+        for (int i = 0; i <= maxDoc; i++)
+            out.writeInt(idOffsets[i]);
+        idBytes.writeTo(out);
+    }
+
+    /**
+     *  Open a table file.
+     *  @param file The table file.
+     *  @param heap If true, read the file into memory instead of
+     *  mapping it.
+     *  @throws IOException
+     */
+    public ExternalIdTable(File file, boolean heap) throws IOException {
+        this(CompiledIndex.open(file, heap), heap);
+    }
+
+    private ExternalIdTable(ByteBuffer buf, boolean heap) {
+        this.maxDoc = buf.getInt();
+        IntBuffer offsets = ((ByteBuffer) buf.slice().limit(4 * (this.maxDoc + 1))).asIntBuffer();
+        if (heap) {
+            this.offsets = new int[this.maxDoc + 1];
+            offsets.get(this.offsets);
+        } else {
+            this.offsetBuffer = offsets;
+        }
+        buf.position(buf.position() + 4 * (this.maxDoc + 1));
+        this.bytes = buf.slice();
+    }
+
+    /**
+     *  @return The number of documents in the table.
+     */
+    public int maxDoc() {
+        return this.maxDoc;
+    }
+
+    private int offset(int i) {
+        return (this.offsets != null) ? this.offsets[i] : this.offsetBuffer.get(i);
+    }
+
+    /**
+     *  @param docid An internal docid.
+     *  @return The external id of the document.
+     */
+    public String get(int docid) {
+
+        int start = offset(docid);
+        int end = offset(docid + 1);
+
+        byte[] b = new byte[end - start];
+        ByteBuffer buf = this.bytes.duplicate();
+        buf.position(start);
+        buf.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *  Compare the external id of a document with a key, byte by byte
+     *  (unsigned), without creating a String.
+     *  @param docid An internal docid.
+     *  @param key The UTF-8 bytes of an external id.
+     *  @return A negative number, zero, or a positive number if the
+     *  external id is less than, equal to, or greater than the key.
+     */
+    public int compare(int docid, byte[] key) {
+
+        int start = offset(docid);
+        int end = offset(docid + 1);
+
+        int n = Math.min(end - start, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (this.bytes.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return (end - start) - key.length;
+    }
+
+    /**
+     *  Compare the external ids of two documents, as compare(int, byte[])
+     *  does.
+     *  @param docid1 An internal docid.
+     *  @param docid2 Another internal docid.
+     *  @return A negative number, zero, or a positive number if the
+     *  first external id is less than, equal to, or greater than the
+     *  second.
+     */
+    public int compare(int docid1, int docid2) {
+
+        int start1 = offset(docid1);
+        int length1 = offset(docid1 + 1) - start1;
+        int start2 = offset(docid2);
+        int length2 = offset(docid2 + 1) - start2;
+
+        int n = Math.min(length1, length2);
+        for (int i = 0; i < n; i++) {
+            int c = (this.bytes.get(start1 + i) & 0xFF) - (this.bytes.get(start2 + i) & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return length1 - length2;
+    }
+
+    /**
+     *  Look up the external ids of several documents at once.
+     *  @param docids Internal docids.
+     *  @param n The number of docids to look up.
+     *  @return The external ids, in the same order as the docids.
+     */
+    public String[] get(int[] docids, int n) {
+        String[] ids = new String[n];
+        for (int i = 0; i < n; i++)
+            ids[i] = get(docids[i]);
+        return ids;
+    }
+}
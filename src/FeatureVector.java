@@ -2,8 +2,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.util.BytesRef;
 
 public class FeatureVector {
 	ArrayList<Double> feature;
@@ -366,7 +364,7 @@ public class FeatureVector {
 	public double getVSMScore (int docid, String field, TermVector tv) throws IOException
 	{
 		double score = 0.0;
-		double N = QryEval.READER.numDocs();
+		double N = QryEval.STATS.numDocs();
 		// for qtf
 		HashMap<String, Integer> token_map = new HashMap<String, Integer>();
 		for (int i = 0; i < tokens.length; ++i)
@@ -419,7 +417,7 @@ public class FeatureVector {
 	{
 		double score = 0.0;
 		
-		int N = QryEval.READER.numDocs();
+		int N = QryEval.STATS.numDocs();
 		HashMap<String, Integer> stem_map = new HashMap<String, Integer>();
 		for (int i = 0; i < tv.stemsLength(); ++i)
 		{
@@ -451,9 +449,9 @@ public class FeatureVector {
 	public double getBM25Score(int docid, String field, TermVector tv) throws IOException
 	{
 		double score = 0.0d;
-		double avg_doclen = (double)QryEval.READER.getSumTotalTermFreq(field) / (double)QryEval.READER.getDocCount(field); 
+		double avg_doclen = QryEval.STATS.getAvgDocLength(field);
 		long doclen = QryEval.dls.getDocLength(field, docid);
-		int N = QryEval.READER.numDocs();
+		int N = QryEval.STATS.numDocs();
 		
 		HashMap<String, Integer> token_hm = new HashMap<String, Integer>();
 		for (int i = 0; i < tokens.length; ++i)
@@ -490,7 +488,7 @@ public class FeatureVector {
 	{
 		double score = 1.0d;
 		
-		double length_C = QryEval.READER.getSumTotalTermFreq(field);
+		double length_C = QryEval.STATS.getSumTotalTermFreq(field);
 		double length_d = QryEval.dls.getDocLength(field, docid);
 		
 		// build a reverse lookup table, which will be used to retrieve the index of a stem
@@ -507,7 +505,7 @@ public class FeatureVector {
 		{
 			String curr = tokens[i];
 			// get ctf
-			long ctf = QryEval.READER.totalTermFreq (new Term(field, new BytesRef(curr)));
+			long ctf = QryEval.STATS.ctf(field, curr);
 			// get tf
 			int tf = 0;
 			if (reverseLookup.containsKey(curr))
@@ -0,0 +1,461 @@
+/**
+ *  An ImpactIndex is an impact-ordered copy of the index for
+ *  score-at-a-time BM25 evaluation of bag-of-words (#SUM) queries.  It
+ *  is produced once, offline, for fixed k1 and b:
+ *
+ *    java ImpactIndex indexPath impactIndexPath k1 b
+ *
+ *  The BM25 score of every posting, RSJ(df) * tf / (tf + k1*((1-b)+
+ *  b*len/avgdl)), is quantized to an impact between 1 and 255 with one
+ *  scale for the whole index, so impacts of different terms can be
+ *  added.  (Postings with a score of 0 or less, which only happens for
+ *  terms in more than half of the documents, are dropped.)  The
+ *  postings of a term are grouped into segments of equal impact,
+ *  highest impact first, with the docids of a segment in increasing
+ *  order.
+ *
+ *  The index is a directory with two kinds of files:
+ *
+ *    terms.bin        k1, b, the impact scale, and for each field its
+ *                     name and, for each term, its string, the number
+ *                     of segments and a pointer to the segments.
+ *    impacts.N.bin    For each segment: its impact, the number of
+ *                     docids, the number of bytes, and the docid gaps
+ *                     as variable-length ints.
+ *
+ *  evaluate() visits the segments of all query terms in decreasing
+ *  order of impact and adds impacts into an accumulator per document.
+ *  It stops when the top k documents and their order can no longer
+ *  change: when each of the k best accumulators beats the next one by
+ *  more than the sum of the impacts that the query terms have left.
+ *  The result is the top k of an exhaustive evaluation, in the same
+ *  order, but their scores are the (quantized) scores of the segments
+ *  read so far.
+ *  evaluate() can also stop after a budget of postings, which gives an
+ *  approximate (anytime) ranking of the documents it reached.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+public class ImpactIndex {
+
+    static final int MAX_IMPACT = 255;
+
+    //  Where the segments of one term are.
+
+    private static class TermSegments {
+        long pointer;		// (impacts file << 32) | offset
+        int numSegments;
+    }
+
+    private double k1;
+    private double b;
+    private double scale;	// score of an impact of 1
+    private Map<String, Map<String, TermSegments>> dictionary =
+        new HashMap<String, Map<String, TermSegments>>();
+    private ByteBuffer[] impacts;
+
+    //  The number of postings visited by the last evaluation.
+
+    private long postingsVisited;
+
+    //  The accumulators, one per document, which are all 0 between
+    //  evaluations.  Only the touched ones are reset.
+
+    private int[] acc = null;
+    private int[] touched = new int[16];
+
+    /**
+     *  Build an impact index.
+     *  @param args The Lucene index path, the output directory, k1 and b.
+     *  @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 4) {
+            System.err.println("Usage:  java ImpactIndex indexPath impactIndexPath k1 b");
+            System.exit(1);
+        }
+
+        QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+        build(args[1], Double.parseDouble(args[2]), Double.parseDouble(args[3]));
+    }
+
+    /**
+     *  Write an impact index of the index that QryEval.READER reads.
+     *  @param path The directory to write the impact index to.
+     *  @param k1 The BM25 k1 parameter.
+     *  @param b The BM25 b parameter.
+     *  @throws IOException
+     */
+    public static void build(String path, double k1, double b) throws IOException {
+
+        File dir = new File(path);
+        dir.mkdirs();
+
+        IndexReader reader = QryEval.READER;
+        IndexStats stats = new IndexStats(reader);
+        DocLengthStore lengths = new DocLengthStore(reader);
+
+        List<String> fields = new ArrayList<String>();
+        for (FieldInfo fi : MultiFields.getMergedFieldInfos(reader)) {
+            if (fi.isIndexed() && fi.hasNorms() &&
+                fi.getIndexOptions().compareTo(FieldInfo.IndexOptions.DOCS_AND_FREQS) >= 0)
+                fields.add(fi.name);
+        }
+
+        //  Pass 1: the largest score, which sets the scale.
+
+        double maxScore = 0;
+        for (String field : fields) {
+            double[] norms = lengths.getBM25Norms(field, k1, b, stats.getAvgDocLength(field));
+            TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+            while (termsEnum.next() != null) {
+                String term = termsEnum.term().utf8ToString();
+                double rsj = RetrievalModelBM25.rsj(stats.numDocs(), termsEnum.docFreq());
+                if (rsj <= 0)
+                    continue;
+                PostingCursor postings = LucenePostingCursor.open(term, field, false);
+                while (postings.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+                    int tf = postings.freq();
+                    maxScore = Math.max(maxScore, rsj * (tf / ((double) tf + norms[postings.docID()])));
+                }
+            }
+        }
+        double scale = (maxScore > 0) ? maxScore / MAX_IMPACT : 1;
+
+        //  Pass 2: quantize and write the segments.
+
+        DataOutputStream termsOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, "terms.bin"))));
+        CompiledIndex.PostingsFiles impactsFiles = new CompiledIndex.PostingsFiles(dir, "impacts");
+
+        termsOut.writeDouble(k1);
+        termsOut.writeDouble(b);
+        termsOut.writeDouble(scale);
+        termsOut.writeInt(fields.size());
+
+        int[] docids = new int[16];
+        int[] quantized = new int[16];
+
+        for (String field : fields) {
+
+            double[] norms = lengths.getBM25Norms(field, k1, b, stats.getAvgDocLength(field));
+            List<String> termStrings = new ArrayList<String>();
+            TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+            while (termsEnum.next() != null)
+                termStrings.add(termsEnum.term().utf8ToString());
+
+            termsOut.writeUTF(field);
+            termsOut.writeInt(termStrings.size());
+
+            for (String term : termStrings) {
+
+                //  Quantize the postings, and count them per impact.
+
+                double rsj = RetrievalModelBM25.rsj(stats.numDocs(), stats.df(field, term));
+                int[] counts = new int[MAX_IMPACT + 2];
+                int n = 0;
+
+                if (rsj > 0) {
+                    PostingCursor postings = LucenePostingCursor.open(term, field, false);
+                    while (postings.nextDoc() != PostingCursor.NO_MORE_DOCS) {
+                        int tf = postings.freq();
+                        double score = rsj * (tf / ((double) tf + norms[postings.docID()]));
+                        int q = Math.min(MAX_IMPACT, (int) Math.ceil(score / scale));
+                        if (q <= 0)
+                            continue;
+                        if (n == docids.length) {
+                            docids = Arrays.copyOf(docids, 2 * n);
+                            quantized = Arrays.copyOf(quantized, 2 * n);
+                        }
+                        docids[n] = postings.docID();
+                        quantized[n] = q;
+                        counts[q] ++;
+                        n ++;
+                    }
+                }
+
+                //  Sort the docids by decreasing impact (a counting
+                //  sort, so docids stay in order within an impact).
+
+                int[] start = new int[MAX_IMPACT + 2];
+                for (int q = MAX_IMPACT - 1; q >= 0; q--)
+                    start[q] = start[q + 1] + counts[q + 1];
+                int[] sorted = new int[n];
+                int[] next = Arrays.copyOf(start, start.length);
+                for (int i = 0; i < n; i++)
+                    sorted[next[quantized[i]] ++] = docids[i];
+
+                long pointer = impactsFiles.startRecord();
+
+                int numSegments = 0;
+                for (int q = MAX_IMPACT; q > 0; q--)
+                    if (counts[q] > 0)
+                        numSegments ++;
+
+                termsOut.writeUTF(term);
+                termsOut.writeInt(numSegments);
+                termsOut.writeLong(pointer);
+
+                for (int q = MAX_IMPACT; q > 0; q--) {
+                    if (counts[q] == 0)
+                        continue;
+                    ByteArrayOutputStream gaps = new ByteArrayOutputStream();
+                    int last = 0;
+                    for (int i = start[q]; i < start[q] + counts[q]; i++) {
+                        writeVInt(gaps, sorted[i] - last);
+                        last = sorted[i];
+                    }
+                    impactsFiles.out.writeInt(q);
+                    impactsFiles.out.writeInt(counts[q]);
+                    impactsFiles.out.writeInt(gaps.size());
+                    gaps.writeTo(impactsFiles.out);
+                }
+            }
+        }
+        termsOut.close();
+        impactsFiles.close();
+    }
+
+    private static void writeVInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     *  Open an impact index.  The dictionary is read into memory and
+     *  the impact files are mapped.
+     *  @param path The directory that holds the impact index.
+     *  @throws IOException
+     */
+    public ImpactIndex(String path) throws IOException {
+
+        File dir = new File(path);
+
+        DataInputStream termsIn = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(new File(dir, "terms.bin"))));
+        this.k1 = termsIn.readDouble();
+        this.b = termsIn.readDouble();
+        this.scale = termsIn.readDouble();
+        int numFields = termsIn.readInt();
+        for (int f = 0; f < numFields; f++) {
+            Map<String, TermSegments> terms = new HashMap<String, TermSegments>();
+            String field = termsIn.readUTF();
+            int numTerms = termsIn.readInt();
+            for (int i = 0; i < numTerms; i++) {
+                String term = termsIn.readUTF();
+                TermSegments t = new TermSegments();
+                t.numSegments = termsIn.readInt();
+                t.pointer = termsIn.readLong();
+                terms.put(term, t);
+            }
+            this.dictionary.put(field, terms);
+        }
+        termsIn.close();
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; new File(dir, "impacts." + i + ".bin").exists(); i++)
+            buffers.add(CompiledIndex.open(new File(dir, "impacts." + i + ".bin"), false));
+        this.impacts = buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     *  @return True if the index was built for these BM25 parameters.
+     */
+    public boolean matches(double k1, double b) {
+        return (this.k1 == k1) && (this.b == b);
+    }
+
+    /**
+     *  Terms whose BM25 weight is not positive have no impacts, so a
+     *  query that has one must be evaluated some other way.
+     *  @param terms The query terms.
+     *  @return True if evaluate() can rank the query.
+     *  @throws IOException
+     */
+    public boolean canEvaluate(List<QryopIlTerm> terms) throws IOException {
+        for (QryopIlTerm t : terms) {
+            int df = QryEval.STATS.df(t.field, t.term);
+            if (df > 0 && RetrievalModelBM25.rsj(QryEval.STATS.numDocs(), df) <= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  @return The number of postings visited by the last evaluation.
+     */
+    public long getPostingsVisited() {
+        return this.postingsVisited;
+    }
+
+    /**
+     *  Evaluate a #SUM of terms score-at-a-time.
+     *  @param terms The query terms.
+     *  @param k The number of documents that will be ranked.
+     *  @param budget The most postings to visit, or a negative number
+     *  for no limit.
+     *  @return The documents that were reached, with their scores, in
+     *  docid order; only the top k, if their order was settled early.
+     */
+    public QryResult evaluate(List<QryopIlTerm> terms, int k, long budget) {
+
+        //  Find the segments of every term.  segmentOffset[t] is the
+        //  offset of term t's next segment, remaining[t] its impact.
+
+        int n = terms.size();
+        ByteBuffer[] buf = new ByteBuffer[n];
+        int[] segmentsLeft = new int[n];
+        int[] segmentOffset = new int[n];
+        int[] remaining = new int[n];
+        int remainingSum = 0;
+
+        for (int t = 0; t < n; t++) {
+            Map<String, TermSegments> field = this.dictionary.get(terms.get(t).field);
+            TermSegments s = (field == null) ? null : field.get(terms.get(t).term);
+            if (s == null || s.numSegments == 0)
+                continue;
+            buf[t] = this.impacts[(int) (s.pointer >>> 32)];
+            segmentOffset[t] = (int) (s.pointer & 0xFFFFFFFFL);
+            segmentsLeft[t] = s.numSegments;
+            remaining[t] = buf[t].getInt(segmentOffset[t]);
+            remainingSum += remaining[t];
+        }
+
+        int maxDoc = QryEval.STATS.maxDoc();
+        if (this.acc == null || this.acc.length != maxDoc)
+            this.acc = new int[maxDoc];
+        int[] acc = this.acc;
+        int[] touched = this.touched;
+        int numTouched = 0;
+        long visited = 0;
+        long sinceCheck = 0;
+        int[] top = null;
+
+        while (remainingSum > 0) {
+
+            //  The segment with the highest impact goes next.
+
+            int t = -1;
+            for (int i = 0; i < n; i++)
+                if (segmentsLeft[i] > 0 && (t < 0 || remaining[i] > remaining[t]))
+                    t = i;
+
+            int offset = segmentOffset[t];
+            int impact = buf[t].getInt(offset);
+            int count = buf[t].getInt(offset + 4);
+            int length = buf[t].getInt(offset + 8);
+
+            //  Only the first part of a segment fits in what is left of
+            //  the budget, if any.
+
+            int read = count;
+            if (budget >= 0 && visited + count > budget)
+                read = (int) (budget - visited);
+            if (read == 0)
+                break;
+
+            offset += 12;
+            int docid = 0;
+            for (int i = 0; i < read; i++) {
+                int value = 0;
+                int shift = 0;
+                byte v;
+                do {
+                    v = buf[t].get(offset ++);
+                    value |= (v & 0x7F) << shift;
+                    shift += 7;
+                } while ((v & 0x80) != 0);
+                docid += value;
+
+                if (acc[docid] == 0) {
+                    if (numTouched == touched.length)
+                        touched = Arrays.copyOf(touched, 2 * numTouched);
+                    touched[numTouched ++] = docid;
+                }
+                acc[docid] += impact;
+            }
+            visited += read;
+            sinceCheck += read;
+            if (read < count)
+                break;
+
+            segmentOffset[t] += 12 + length;
+            segmentsLeft[t] --;
+            remainingSum -= remaining[t];
+            remaining[t] = (segmentsLeft[t] > 0) ? buf[t].getInt(segmentOffset[t]) : 0;
+            remainingSum += remaining[t];
+
+            //  Check whether the top k or their order can still change,
+            //  at most once per numTouched postings so the checks cost
+            //  O(postings).  If they can not, stop.
+
+            if (remainingSum > 0 && sinceCheck >= numTouched && numTouched > k) {
+                sinceCheck = 0;
+                int[] scores = topScores(acc, touched, numTouched, k + 1);
+                boolean settled = true;
+                for (int i = 0; i < k && settled; i++)
+                    settled = (scores[i] + remainingSum < scores[i + 1]);
+                if (settled) {
+                    top = scores;
+                    break;
+                }
+            }
+        }
+        this.postingsVisited = visited;
+        this.touched = touched;
+
+        QryResult result = new QryResult();
+        Arrays.sort(touched, 0, numTouched);
+        for (int i = 0; i < numTouched; i++)
+            if (top == null || acc[touched[i]] >= top[1])
+                result.docScores.add(touched[i], acc[touched[i]] * this.scale);
+
+        for (int i = 0; i < numTouched; i++)
+            acc[touched[i]] = 0;
+        return result;
+    }
+
+    /**
+     *  Find the m highest accumulator values with a min-heap of size m.
+     *  @return The values, lowest first.
+     */
+    private static int[] topScores(int[] acc, int[] touched, int numTouched, int m) {
+
+        int[] heap = new int[m];
+        for (int i = 0; i < m; i++)
+            heap[i] = acc[touched[i]];
+        Arrays.sort(heap);	// a sorted array is a min-heap
+
+        for (int i = m; i < numTouched; i++) {
+            int v = acc[touched[i]];
+            if (v <= heap[0])
+                continue;
+            int j = 0;	// sift v down from the root
+            while (2 * j + 1 < m) {
+                int c = 2 * j + 1;
+                if (c + 1 < m && heap[c + 1] < heap[c])
+                    c++;
+                if (heap[c] >= v)
+                    break;
+                heap[j] = heap[c];
+                j = c;
+            }
+            heap[j] = v;
+        }
+
+        Arrays.sort(heap);
+        return heap;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *  IndexStats answers the collection and term statistics questions that
+ *  scorers ask again and again: the number of documents, the total
+ *  length and document count of a field, and the df and ctf of a term.
+ *
+ *  Collection statistics are read once, for every indexed field, when
+ *  the object is created.  Term statistics are read on first use with a
+ *  single dictionary seek and kept in a concurrent map keyed by (field,
+ *  term), so the query operators, the feature extractor and query
+ *  expansion never seek the same term twice.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+public class IndexStats {
+
+    private static class FieldStats {
+        long sumTotalTermFreq;
+        int docCount;
+        double avgDocLength;
+    }
+
+    private IndexReader reader;
+    private int numDocs;
+    private int maxDoc;
+    private ConcurrentHashMap<String, FieldStats> fields =
+        new ConcurrentHashMap<String, FieldStats>();
+    private ConcurrentHashMap<String, long[]> terms =
+        new ConcurrentHashMap<String, long[]>();	// {df, ctf}
+
+    /**
+     *  Take a snapshot of the collection statistics of an index.
+     *  @param reader The index.
+     *  @throws IOException
+     */
+    public IndexStats(IndexReader reader) throws IOException {
+        this.reader = reader;
+        this.numDocs = reader.numDocs();
+        this.maxDoc = reader.maxDoc();
+        for (String field : MultiFields.getIndexedFields(reader))
+            getFieldStats(field);
+    }
+
+    private FieldStats getFieldStats(String field) throws IOException {
+        FieldStats s = this.fields.get(field);
+        if (s == null) {
+            s = new FieldStats();
+            s.sumTotalTermFreq = this.reader.getSumTotalTermFreq(field);
+            s.docCount = this.reader.getDocCount(field);
+            s.avgDocLength = (double) s.sumTotalTermFreq / s.docCount;
+            this.fields.put(field, s);
+        }
+        return s;
+    }
+
+    /**
+     *  @return The number of documents, not counting deleted ones.
+     */
+    public int numDocs() {
+        return this.numDocs;
+    }
+
+    /**
+     *  @return The number of documents, including deleted ones.
+     */
+    public int maxDoc() {
+        return this.maxDoc;
+    }
+
+    /**
+     *  @param field A field name.
+     *  @return The total number of term occurrences in the field.
+     *  @throws IOException
+     */
+    public long getSumTotalTermFreq(String field) throws IOException {
+        return getFieldStats(field).sumTotalTermFreq;
+    }
+
+    /**
+     *  @param field A field name.
+     *  @return The number of documents that have the field.
+     *  @throws IOException
+     */
+    public int getDocCount(String field) throws IOException {
+        return getFieldStats(field).docCount;
+    }
+
+    /**
+     *  @param field A field name.
+     *  @return The average length of the field in the documents that
+     *  have it.
+     *  @throws IOException
+     */
+    public double getAvgDocLength(String field) throws IOException {
+        return getFieldStats(field).avgDocLength;
+    }
+
+    /**
+     *  @param field A field name.
+     *  @param term A processed (stemmed, lower-cased, etc) term string.
+     *  @return The number of documents that contain the term.
+     *  @throws IOException
+     */
+    public int df(String field, String term) throws IOException {
+        return (int) getTermStats(field, term)[0];
+    }
+
+    /**
+     *  @param field A field name.
+     *  @param term A processed (stemmed, lower-cased, etc) term string.
+     *  @return The number of occurrences of the term.
+     *  @throws IOException
+     */
+    public long ctf(String field, String term) throws IOException {
+        return getTermStats(field, term)[1];
+    }
+
+    /**
+     *  Get the {df, ctf} of a term, seeking it in the dictionary only
+     *  the first time.  A term that does not occur has {0, 0}.
+     */
+    private long[] getTermStats(String field, String term) throws IOException {
+
+        String key = field + "\u0000" + term;
+        long[] s = this.terms.get(key);
+
+        if (s == null) {
+            s = new long[2];
+            Terms fieldTerms = MultiFields.getTerms(this.reader, field);
+            if (fieldTerms != null) {
+                TermsEnum termsEnum = fieldTerms.iterator(null);
+                if (termsEnum.seekExact(new BytesRef(term), true)) {
+                    s[0] = termsEnum.docFreq();
+                    s[1] = termsEnum.totalTermFreq();
+                }
+            }
+            this.terms.put(key, s);
+        }
+        return s;
+    }
+}
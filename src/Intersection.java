@@ -0,0 +1,207 @@
+/**
+ *  An Intersection finds the docids that all of a set of lists (score
+ *  lists or inverted lists) contain, and where each list has them.
+ *  Exact-match #AND and the positional operators use it to find the
+ *  documents they must examine.
+ *
+ *  The lists are intersected small-versus-small: the shortest list
+ *  gives the candidate docids, and each of the other lists, shortest
+ *  first, removes the candidates it does not contain.  A list that is
+ *  not much longer than the candidates that remain is merged with them
+ *  linearly.  A list that is much longer is searched for each candidate
+ *  by galloping (exponential search followed by binary search), or by
+ *  following the skip pointers of an inverted list, so that most of it
+ *  is never looked at.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+public class Intersection {
+
+    //  A list is galloped through when it is at least this many times
+    //  longer than the number of candidates.
+
+    static final int GALLOP_RATIO = 8;
+
+    private ScoreList[] scoreLists;	// the lists, if they are score lists
+    private InvList[] invLists;		// the lists, if they are inverted lists
+    private int numLists;
+
+    private int size = 0;
+    private int[] docids;		// the common docids
+    private int[][] indexes;		// indexes[i][m]: where list i has docids[m]
+
+    /**
+     *  Intersect score lists.
+     *  @param lists The score lists.
+     */
+    public Intersection(ScoreList... lists) {
+        this.scoreLists = lists;
+        this.numLists = lists.length;
+        intersect();
+    }
+
+    /**
+     *  Intersect inverted lists.
+     *  @param lists The inverted lists.
+     */
+    public Intersection(InvList... lists) {
+        this.invLists = lists;
+        this.numLists = lists.length;
+        intersect();
+    }
+
+    /**
+     *  @return The number of docids that all of the lists contain.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  Get the m'th common docid.  They are in docid order.
+     *  @param m The index of the common docid.
+     *  @return The internal document id.
+     */
+    public int getDocid(int m) {
+        return this.docids[m];
+    }
+
+    /**
+     *  Get the index of the m'th common docid in one of the lists.
+     *  @param list The position of the list among the lists given to
+     *  the constructor.
+     *  @param m The index of the common docid.
+     *  @return The index of the document in the list.
+     */
+    public int getIndex(int list, int m) {
+        return this.indexes[list][m];
+    }
+
+    /**
+     *  Find the common docids.
+     */
+    private void intersect() {
+
+        this.indexes = new int[this.numLists][];
+        if (this.numLists == 0) {
+            this.docids = new int[0];
+            return;
+        }
+
+        //  Order the lists by length.  The shortest gives the candidates.
+
+        Integer[] order = new Integer[this.numLists];
+        for (int i = 0; i < this.numLists; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return listSize(a) - listSize(b);
+            }
+        });
+
+        int lead = order[0];
+        this.size = listSize(lead);
+        this.docids = new int[this.size];
+        for (int i = 0; i < this.numLists; i++)
+            this.indexes[i] = new int[this.size];
+        for (int m = 0; m < this.size; m++) {
+            this.docids[m] = docid(lead, m);
+            this.indexes[lead][m] = m;
+        }
+
+        //  Remove the candidates that each of the other lists does not
+        //  contain, moving the ones that remain to the front.
+
+        for (int k = 1; k < this.numLists && this.size > 0; k++) {
+            int list = order[k];
+            int listSize = listSize(list);
+            boolean gallop = ((long) listSize >= (long) GALLOP_RATIO * this.size);
+
+            int n = 0;
+            int kept = 0;
+            for (int m = 0; m < this.size; m++) {
+                n = seek(list, n, this.docids[m], gallop);
+                if (n >= listSize)
+                    break;
+                if (docid(list, n) != this.docids[m])
+                    continue;
+
+                this.docids[kept] = this.docids[m];
+                for (int j = 0; j < k; j++)
+                    this.indexes[order[j]][kept] = this.indexes[order[j]][m];
+                this.indexes[list][kept] = n;
+                kept++;
+            }
+            this.size = kept;
+        }
+    }
+
+    /**
+     *  @return The length of list i.
+     */
+    private int listSize(int i) {
+        return (this.scoreLists != null) ? this.scoreLists[i].size() : this.invLists[i].df;
+    }
+
+    /**
+     *  @return The n'th docid of list i.
+     */
+    private int docid(int i, int n) {
+        return (this.scoreLists != null) ? this.scoreLists[i].getDocid(n) : this.invLists[i].getDocid(n);
+    }
+
+    /**
+     *  Find the first entry of list i at or after index n whose docid
+     *  is at least target.
+     *  @param i The list.
+     *  @param n The index to start from.
+     *  @param target The docid to find.
+     *  @param gallop True to gallop, false to step through the list.
+     *  @return The index of the entry, or the length of the list if
+     *  there is none.
+     */
+    private int seek(int i, int n, int target, boolean gallop) {
+
+        int listSize = listSize(i);
+
+        if (! gallop) {
+            while (n < listSize && docid(i, n) < target)
+                n++;
+            return n;
+        }
+
+        //  An inverted list has skip pointers, which find the block
+        //  without decoding the blocks in between.
+
+        if (this.invLists != null)
+            return this.invLists[i].advance(n, target);
+
+        if (n >= listSize || docid(i, n) >= target)
+            return n;
+
+        //  docid(lo) < target.  Double the step until docid(hi) is at
+        //  least target, then binary search between them.
+
+        int lo = n;
+        int step = 1;
+        int hi = n + step;
+        while (hi < listSize && docid(i, hi) < target) {
+            lo = hi;
+            step *= 2;
+            hi = n + step;
+        }
+        hi = Math.min(hi, listSize);
+
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (docid(i, mid) < target)
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return hi;
+    }
+}
@@ -4,11 +4,35 @@
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
  *
+ *  Postings are stored in a compressed, block-oriented format rather
+ *  than as one object per posting.  Every BLOCK_SIZE postings form a
+ *  block.  Within a block, each posting is a variable-byte docid gap
+ *  (relative to the previous posting) followed by a variable-byte tf.
+ *  Positions are kept in a separate byte stream as variable-byte
+ *  position gaps, tf of them per posting.  For each block we remember
+ *  its last docid and its offsets into the two byte streams, so a
+ *  block can be decoded without decoding the blocks before it.  The
+ *  last docids double as skip pointers: advance(target) jumps over
+ *  every block that ends before target without decoding it.
+ *
+ *  A lazy inverted list knows only its df and ctf.  Its cursor reads
+ *  the postings straight from the Lucene index (or from a
+ *  CompiledIndex).  The postings are copied into memory only if a
+ *  query operator asks for them by index.
+ *
+ *  An inverted list may be built without positions, for query
+ *  operators that only need docids and tfs.  Such a list never decodes
+ *  (or stores) positions, and getPositions must not be called on it.
+ *
+ *  The compressed format is also the on-disk format of CompiledIndex;
+ *  see write() and the InvList(String, ByteBuffer) constructor.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.util.*;
 import java.io.*;
+import java.nio.*;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.*;
@@ -16,42 +40,47 @@ import org.apache.lucene.search.*;
 
 public class InvList {
 
-    //  Utility class that makes it easier to construct postings.
+    //  Number of postings per compressed block.
 
-	/**
-	 * Invlists contain three fields: docid, tf, positions. 
-	 * Positions may take too much storage, so invlist is more
-	 * expensive than scorelist.
-	 * @author Caesar
-	 *
-	 */
-    public static class DocPosting {
-
-        public int docid = 0;
-        public int tf = 0;
-        public Vector<Integer> positions = new Vector<Integer>();
-
-        public DocPosting(int d, int... locations) {
-            this.docid = d;
-            this.tf = locations.length;//frequency is the length of positions
-            for (int i = 0; i < locations.length; i++)
-                this.positions.add(locations[i]);
-        }
-
-        public DocPosting(int d, List<Integer> locations) {
-            this.docid = d;
-            this.tf = locations.size();
-            for (int i = 0; i < locations.size(); i++)
-                this.positions.add(locations.get(i));
-        }
-    }
+    public static final int BLOCK_SIZE = 128;
 
     //  Class variables.
 
     public int ctf = 0;
     public int df = 0;
     public String field;
-    public Vector<DocPosting> postings = new Vector<DocPosting>();
+    public boolean hasPositions = true;
+
+    //  The compressed postings.  docBytes holds (docid gap, tf) pairs,
+    //  posBytes holds position gaps.
+
+    private byte[] docBytes = new byte[16];
+    private int docBytesLength = 0;
+    private byte[] posBytes = new byte[16];
+    private int posBytesLength = 0;
+
+    //  Per-block metadata.
+
+    private int numBlocks = 0;
+    private int[] blockLastDocid = new int[1];
+    private int[] blockDocOffset = new int[1];
+    private int[] blockPosOffset = new int[1];
+
+    //  The term of a lazy inverted list, or null once the postings are
+    //  in memory.
+
+    private String lazyTerm = null;
+    private CompiledIndex lazyIndex = null;
+
+    //  The most recently decoded block.  getDocid, getTf and
+    //  getPositions are usually called in docid order, so most calls
+    //  are answered from this buffer.
+
+    private int bufBlock = -1;
+    private int[] bufDocids = new int[BLOCK_SIZE];
+    private int[] bufTfs = new int[BLOCK_SIZE];
+    private int[] bufPosOffsets = new int[BLOCK_SIZE];
+    private boolean bufPosOffsetsValid = false;
 
     /**
      *  Constructor.  An empty inverted list. Useful for some query operators.
@@ -73,42 +102,188 @@ public class InvList {
      *  @throws IOException
      */
     public InvList(String termString, String fieldString) throws IOException {
+        this(termString, fieldString, false);
+    }
+
+    /**
+     *  Fetch an inverted list from the index, or create a lazy inverted
+     *  list that reads postings from the index only when they are used.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param lazy If true, do not copy the postings into memory.
+     *  @throws IOException
+     */
+    public InvList(String termString, String fieldString, boolean lazy) throws IOException {
+        this(termString, fieldString, lazy, true);
+    }
+
+    /**
+     *  Fetch an inverted list from the index, or create a lazy inverted
+     *  list that reads postings from the index only when they are used.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param lazy If true, do not copy the postings into memory.
+     *  @param positions If false, read only docids and tfs.
+     *  @throws IOException
+     */
+    public InvList(String termString, String fieldString, boolean lazy, boolean positions)
+        throws IOException {
 
         //  Store the field name.  This is used by other query operators.
 
         this.field = new String (fieldString);
+        this.hasPositions = positions;
 
         //  Prepare to access the index.
 
-        BytesRef termBytes = new BytesRef(termString);
-        Term term = new Term(fieldString, termBytes);
+        TermsEnum termsEnum = LucenePostingCursor.seek(termString, fieldString);
+
+        if ((termsEnum == null) || (termsEnum.docFreq() < 1))
+            return;
 
-        if (QryEval.READER.docFreq(term) < 1)
+        if (lazy) {
+            this.lazyTerm = termString;
+            this.df = termsEnum.docFreq();
+            this.ctf = (int) termsEnum.totalTermFreq();
             return;
+        }
 
-        //  Lookup the inverted list.
+        copyPostings (LucenePostingCursor.open(termString, fieldString, positions));
+    }
 
-        DocsAndPositionsEnum iList =
-            MultiFields.getTermPositionsEnum(QryEval.READER,
-                                             MultiFields.getLiveDocs(QryEval.READER),
-                                             fieldString, termBytes);
+    /**
+     *  Create a lazy inverted list whose postings are in a CompiledIndex.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param df The document frequency of the term.
+     *  @param ctf The collection term frequency of the term.
+     *  @param index The compiled index that holds the postings.
+     *  @param positions If false, read only docids and tfs.
+     */
+    InvList(String termString, String fieldString, int df, int ctf, CompiledIndex index,
+            boolean positions) {
+        this.field = new String (fieldString);
+        this.hasPositions = positions;
+        this.lazyTerm = termString;
+        this.lazyIndex = index;
+        this.df = df;
+        this.ctf = ctf;
+    }
 
-        //  Copy from Lucene inverted list format to our inverted list
-        //  format. This is a little inefficient, but allows query
-        //  operators such as #SYN and #NEAR/n to be insulated from the
-        //  details of Lucene inverted list implementations.
+    /**
+     *  Read an inverted list that was serialized with write().  The
+     *  compressed postings are copied as they are; nothing is decoded.
+     *  @param fieldString The field that the term occurs in.
+     *  @param buf A buffer positioned at the start of the serialized list.
+     *  @param positions If false, leave the positions behind.
+     */
+    public InvList(String fieldString, ByteBuffer buf, boolean positions) {
 
-        while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        this.field = new String (fieldString);
+        this.hasPositions = positions;
+
+        this.df = buf.getInt();
+        this.ctf = buf.getInt();
+        this.numBlocks = buf.getInt();
+        this.docBytesLength = buf.getInt();
+        this.posBytesLength = buf.getInt();
+
+        this.blockLastDocid = new int[Math.max(1, this.numBlocks)];
+        this.blockDocOffset = new int[Math.max(1, this.numBlocks)];
+        this.blockPosOffset = new int[Math.max(1, this.numBlocks)];
+        buf.asIntBuffer().get(this.blockLastDocid, 0, this.numBlocks);
+        buf.position(buf.position() + 4 * this.numBlocks);
+        buf.asIntBuffer().get(this.blockDocOffset, 0, this.numBlocks);
+        buf.position(buf.position() + 4 * this.numBlocks);
+        buf.asIntBuffer().get(this.blockPosOffset, 0, this.numBlocks);
+        buf.position(buf.position() + 4 * this.numBlocks);
+
+        this.docBytes = new byte[this.docBytesLength + 16];
+        buf.get(this.docBytes, 0, this.docBytesLength);
+
+        if (positions) {
+            this.posBytes = new byte[this.posBytesLength + 16];
+            buf.get(this.posBytes, 0, this.posBytesLength);
+        } else {
+            this.posBytesLength = 0;
+            Arrays.fill(this.blockPosOffset, 0);
+        }
+    }
+
+    /**
+     *  Serialize the inverted list: df, ctf, the number of blocks, the
+     *  lengths of the two byte streams, the three block metadata
+     *  arrays, and then the two byte streams.
+     *  @param out The stream to write to.
+     *  @throws IOException
+     */
+    public void write(DataOutputStream out) throws IOException {
+
+        if (this.lazyTerm != null)
+            materialize ();
+
+        out.writeInt(this.df);
+        out.writeInt(this.ctf);
+        out.writeInt(this.numBlocks);
+        out.writeInt(this.docBytesLength);
+        out.writeInt(this.posBytesLength);
+        for (int i = 0; i < this.numBlocks; i++)
+            out.writeInt(this.blockLastDocid[i]);
+        for (int i = 0; i < this.numBlocks; i++)
+            out.writeInt(this.blockDocOffset[i]);
+        for (int i = 0; i < this.numBlocks; i++)
+            out.writeInt(this.blockPosOffset[i]);
+        out.write(this.docBytes, 0, this.docBytesLength);
+        out.write(this.posBytes, 0, this.posBytesLength);
+    }
+
+    /**
+     *  Copy from Lucene inverted list format to our inverted list
+     *  format. This is a little inefficient, but allows query
+     *  operators such as #SYN and #NEAR/n to be insulated from the
+     *  details of Lucene inverted list implementations.
+     *  @param iList A cursor on the Lucene inverted list.
+     *  @throws IOException
+     */
+    private void copyPostings (PostingCursor iList) throws IOException {
+
+        int[] positions = new int[16];
+
+        while (iList.nextDoc() != PostingCursor.NO_MORE_DOCS) {
 
             int tf = iList.freq();
-            int[] positions = new int[tf];
+
+            if (! this.hasPositions) {
+                this.appendPosting(iList.docID(), tf);
+                continue;
+            }
+
+            if (tf > positions.length)
+                positions = new int[Math.max(tf, 2 * positions.length)];
 
             for (int j = 0; j < tf; j++)
                 positions[j] = iList.nextPosition();
 
-            this.postings.add(new DocPosting(iList.docID(), positions));
-            this.df++;
-            this.ctf += tf;
+            this.appendPosting(iList.docID(), positions, tf);
+        }
+    }
+
+    /**
+     *  Copy the postings of a lazy inverted list into memory.  Query
+     *  operators that need random access to postings trigger this.
+     */
+    private void materialize () {
+
+        try {
+            PostingCursor source = cursor();
+
+            this.lazyTerm = null;
+            this.df = 0;
+            this.ctf = 0;
+
+            copyPostings (source);
+        } catch (IOException e) {
+            throw new RuntimeException (e);
         }
     }
 
@@ -121,18 +296,82 @@ public class InvList {
      */
     public boolean appendPosting (int docid, List<Integer> positions) {
 
+        int[] p = new int[positions.size()];
+
+        for (int i = 0; i < p.length; i++)
+            p[i] = positions.get(i);
+
+        return this.appendPosting (docid, p, p.length);
+    }
+
+    /**
+     *  Append a posting without positions to the posting list.  Posting
+     *  must be appended in docid order, otherwise this method fails.
+     *  The list becomes a list without positions, so postings with and
+     *  without positions must not be mixed.
+     *  @param docid The posting internal document id.
+     *  @param tf The number of times the term occurs.
+     *  @result true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting (int docid, int tf) {
+        this.hasPositions = false;
+        return this.appendPosting (docid, null, tf);
+    }
+
+    /**
+     *  Append a posting to the posting list.  Posting must be appended
+     *  in docid order, otherwise this method fails.
+     *  @param docid The posting internal document id.
+     *  @param positions An array of positions where the term occurs.
+     *  @param tf The number of valid entries in positions.
+     *  @result true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting (int docid, int[] positions, int tf) {
+
+        if (this.lazyTerm != null)
+            materialize ();
+
         //  A posting can only be appended if its docid is greater than
         //  the last docid.
 
-        if ((this.df > 1) &&
-                (this.postings.get(this.df-1).docid >= docid))
+        int lastDocid = (this.df > 0) ? this.blockLastDocid[this.numBlocks-1] : -1;
+
+        if ((this.df > 0) && (lastDocid >= docid))
             return false;
 
-        DocPosting p = new DocPosting (docid, positions);
+        //  Start a new block every BLOCK_SIZE postings.
+
+        if (this.df % BLOCK_SIZE == 0) {
+            if (this.numBlocks == this.blockLastDocid.length) {
+                int n = 2 * this.numBlocks;
+                this.blockLastDocid = Arrays.copyOf (this.blockLastDocid, n);
+                this.blockDocOffset = Arrays.copyOf (this.blockDocOffset, n);
+                this.blockPosOffset = Arrays.copyOf (this.blockPosOffset, n);
+            }
+            this.blockDocOffset[this.numBlocks] = this.docBytesLength;
+            this.blockPosOffset[this.numBlocks] = this.posBytesLength;
+            this.numBlocks ++;
+        }
+
+        //  The decoded copy of the last block is now stale.
 
-        this.postings.add (p);
+        if (this.bufBlock == this.numBlocks - 1)
+            this.bufBlock = -1;
+
+        writeVInt (docid - lastDocid, true);
+        writeVInt (tf, true);
+
+        if (this.hasPositions) {
+            int prev = 0;
+            for (int i = 0; i < tf; i++) {
+                writeVInt (positions[i] - prev, false);
+                prev = positions[i];
+            }
+        }
+
+        this.blockLastDocid[this.numBlocks-1] = docid;
         this.df ++;
-        this.ctf += p.tf;
+        this.ctf += tf;
         return true;
     }
 
@@ -142,8 +381,8 @@ public class InvList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-    	//System.out.println(n);
-        return this.postings.get(n).docid;
+        loadBlock (n / BLOCK_SIZE);
+        return this.bufDocids[n % BLOCK_SIZE];
     }
 
     /**
@@ -152,7 +391,175 @@ public class InvList {
      *  @return The document's term frequency.
      */
     public int getTf(int n) {
-        return this.postings.get(n).tf;
+        loadBlock (n / BLOCK_SIZE);
+        return this.bufTfs[n % BLOCK_SIZE];
+    }
+
+    /**
+     *  Find the first posting at or after index n whose docid is at
+     *  least target.  Blocks that end before target are skipped
+     *  without being decoded.
+     *  @param n The index to start from.
+     *  @param target The docid to advance to.
+     *  @return The index of the posting, or df if there is none.
+     */
+    public int advance(int n, int target) {
+
+        if (n >= this.df)
+            return this.df;
+
+        int b = n / BLOCK_SIZE;
+        int skipTo = skipBlocks (b, target);
+
+        if (skipTo == this.numBlocks)
+            return this.df;
+        if (skipTo != b)
+            n = skipTo * BLOCK_SIZE;
+
+        loadBlock (skipTo);
+        while ((n < this.df) && (this.bufDocids[n % BLOCK_SIZE] < target))
+            n ++;
+        return n;
+    }
+
+    /**
+     *  Get the positions of the term in the n'th document of the
+     *  inverted list.  The first getTf(n) entries of the returned
+     *  array are valid.
+     *  @param n The index of the requested document.
+     *  @param buf A buffer to decode into, or null.  If it is too
+     *  small, a larger array is allocated.
+     *  @return buf, or the array that replaced it.
+     */
+    public int[] getPositions(int n, int[] buf) {
+
+        if (! this.hasPositions)
+            throw new IllegalStateException ("Inverted list has no positions");
+
+        loadBlock (n / BLOCK_SIZE);
+        loadPosOffsets ();
+
+        int tf = this.bufTfs[n % BLOCK_SIZE];
+
+        if ((buf == null) || (buf.length < tf))
+            buf = new int[Math.max(tf, 16)];
+
+        decodePositions (this.bufPosOffsets[n % BLOCK_SIZE], tf, buf);
+        return buf;
+    }
+
+    /**
+     *  Return a cursor positioned before the first posting.  The
+     *  cursor of a lazy inverted list reads from the Lucene index or
+     *  the compiled index.
+     *  @return A new cursor.
+     *  @throws IOException
+     */
+    public PostingCursor cursor() throws IOException {
+        if (this.lazyTerm != null) {
+            if (this.lazyIndex != null)
+                return this.lazyIndex.cursor(this.lazyTerm, this.field, this.hasPositions);
+            return LucenePostingCursor.open(this.lazyTerm, this.field, this.hasPositions);
+        }
+        return new Cursor();
+    }
+
+    /**
+     *  A Cursor iterates over the postings of an inverted list in docid
+     *  order, decoding one block at a time into its own buffers.  Many
+     *  cursors may read the same inverted list concurrently.
+     */
+    public class Cursor extends PostingCursor {
+
+        private int index = -1;
+        private int block = -1;
+        private int[] docids = new int[BLOCK_SIZE];
+        private int[] tfs = new int[BLOCK_SIZE];
+        private int posOffset = 0;
+        private int posRead = 0;
+        private int posLast = 0;
+
+        /**
+         *  @return The index of the current posting, or -1 before the
+         *  first call to nextDoc.
+         */
+        public int index() {
+            return this.index;
+        }
+
+        public int docID() {
+            if (this.index < 0)
+                return -1;
+            if (this.index >= InvList.this.df)
+                return NO_MORE_DOCS;
+            return this.docids[this.index % BLOCK_SIZE];
+        }
+
+        public int nextDoc() {
+
+            if (this.index < InvList.this.df)
+                this.index ++;
+
+            if (this.index >= InvList.this.df)
+                return NO_MORE_DOCS;
+
+            int b = this.index / BLOCK_SIZE;
+            int i = this.index % BLOCK_SIZE;
+
+            if (b != this.block) {
+                this.block = b;
+                InvList.this.decodeBlock (b, this.docids, this.tfs);
+                this.posOffset = InvList.this.blockPosOffset[b];
+            } else if (InvList.this.hasPositions) {
+                this.posOffset = InvList.this.skipPositions (this.posOffset,
+                    this.tfs[i-1] - this.posRead);
+            }
+
+            this.posRead = 0;
+            this.posLast = 0;
+            return this.docids[i];
+        }
+
+        public int advance(int target) {
+
+            int docid = docID();
+
+            if (docid >= target)
+                return docid;
+
+            //  Skip the blocks that end before target.
+
+            int b = (this.index < 0) ? 0 : this.index / BLOCK_SIZE;
+            int skipTo = InvList.this.skipBlocks (b, target);
+
+            if (skipTo != b) {
+                this.index = skipTo * BLOCK_SIZE - 1;
+                docid = nextDoc();
+            }
+
+            while (docid < target)
+                docid = nextDoc();
+            return docid;
+        }
+
+        public int freq() {
+            return this.tfs[this.index % BLOCK_SIZE];
+        }
+
+        public int nextPosition() {
+            byte[] bytes = InvList.this.posBytes;
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[this.posOffset ++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            this.posRead ++;
+            this.posLast += value;
+            return this.posLast;
+        }
     }
 
     /**
@@ -160,17 +567,167 @@ public class InvList {
      */
     public void print() {
 
+        if (this.lazyTerm != null)
+            materialize ();
+
         System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
+        int[] positions = null;
+
         for (int i = 0; i < this.df; i++) {
-            System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-                             + this.postings.elementAt(i).tf + ", locs: ");
+            System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+                             + this.getTf(i) + ", locs: ");
+
+            if (this.hasPositions) {
+                positions = this.getPositions(i, positions);
 
-            for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-                System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+                for (int j = 0; j < this.getTf(i); j++) {
+                    System.out.print(positions[j] + " ");
+                }
             }
 
             System.out.println();
         }
     }
+
+    /**
+     *  Decode block b into the shared buffers, if it isn't there already.
+     *  @param b The block number.
+     */
+    private void loadBlock (int b) {
+        if (this.lazyTerm != null)
+            materialize ();
+        if (this.bufBlock != b) {
+            decodeBlock (b, this.bufDocids, this.bufTfs);
+            this.bufBlock = b;
+            this.bufPosOffsetsValid = false;
+        }
+    }
+
+    /**
+     *  Follow the skip pointers from block b to the first block whose
+     *  last docid is at least target.
+     *  @return The block number, or numBlocks if there is none.
+     */
+    private int skipBlocks (int b, int target) {
+        if (this.lazyTerm != null)
+            materialize ();
+        while ((b < this.numBlocks) && (this.blockLastDocid[b] < target))
+            b ++;
+        return b;
+    }
+
+    /**
+     *  Find where each posting of the buffered block starts in posBytes.
+     */
+    private void loadPosOffsets () {
+
+        if (this.bufPosOffsetsValid)
+            return;
+
+        int count = Math.min (BLOCK_SIZE, this.df - this.bufBlock * BLOCK_SIZE);
+        int offset = this.blockPosOffset[this.bufBlock];
+
+        for (int i = 0; i < count; i++) {
+            this.bufPosOffsets[i] = offset;
+            offset = skipPositions (offset, this.bufTfs[i]);
+        }
+        this.bufPosOffsetsValid = true;
+    }
+
+    /**
+     *  Decode the docids and tfs of block b.
+     *  @param b The block number.
+     *  @param docids Receives the docids of the block.
+     *  @param tfs Receives the tfs of the block.
+     */
+    private void decodeBlock (int b, int[] docids, int[] tfs) {
+
+        int count = Math.min (BLOCK_SIZE, this.df - b * BLOCK_SIZE);
+        int offset = this.blockDocOffset[b];
+        int docid = (b == 0) ? -1 : this.blockLastDocid[b-1];
+        byte[] bytes = this.docBytes;
+
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < 2; k++) {
+                int value = 0;
+                int shift = 0;
+                byte c;
+                do {
+                    c = bytes[offset ++];
+                    value |= (c & 0x7F) << shift;
+                    shift += 7;
+                } while ((c & 0x80) != 0);
+
+                if (k == 0) {
+                    docid += value;
+                    docids[i] = docid;
+                } else {
+                    tfs[i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Decode tf position gaps starting at offset into absolute positions.
+     */
+    private void decodePositions (int offset, int tf, int[] buf) {
+
+        byte[] bytes = this.posBytes;
+        int prev = 0;
+
+        for (int i = 0; i < tf; i++) {
+            int value = 0;
+            int shift = 0;
+            byte c;
+            do {
+                c = bytes[offset ++];
+                value |= (c & 0x7F) << shift;
+                shift += 7;
+            } while ((c & 0x80) != 0);
+            prev += value;
+            buf[i] = prev;
+        }
+    }
+
+    /**
+     *  Skip over n variable-byte values in posBytes.
+     *  @return The offset just after the n'th value.
+     */
+    private int skipPositions (int offset, int n) {
+        byte[] bytes = this.posBytes;
+        while (n > 0) {
+            if ((bytes[offset ++] & 0x80) == 0)
+                n --;
+        }
+        return offset;
+    }
+
+    /**
+     *  Append a variable-byte integer to docBytes or posBytes.  The
+     *  value is treated as unsigned, so any int round-trips.
+     */
+    private void writeVInt (int value, boolean toDocBytes) {
+
+        byte[] bytes = toDocBytes ? this.docBytes : this.posBytes;
+        int length = toDocBytes ? this.docBytesLength : this.posBytesLength;
+
+        if (length + 5 > bytes.length)
+            bytes = Arrays.copyOf (bytes, 2 * bytes.length + 5);
+
+        while ((value & ~0x7F) != 0) {
+            bytes[length ++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length ++] = (byte) value;
+
+        if (toDocBytes) {
+            this.docBytes = bytes;
+            this.docBytesLength = length;
+        } else {
+            this.posBytes = bytes;
+            this.posBytesLength = length;
+        }
+    }
 }
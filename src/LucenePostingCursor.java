@@ -0,0 +1,153 @@
+/**
+ *  This class implements a PostingCursor that reads an inverted list
+ *  directly from the Lucene index, without copying it into an InvList
+ *  first.  Only the postings that a query operator actually visits are
+ *  decoded.
+ *
+ *  Lucene's TermsEnum and DocsAndPositionsEnum objects are expensive
+ *  to create, so one TermsEnum is kept per field, and the
+ *  DocsAndPositionsEnum of an exhausted cursor is handed to the next
+ *  cursor opened on the same field.
+ *
+ *  A cursor that is opened without positions uses a DocsEnum, so Lucene
+ *  does not decode positions either.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+public class LucenePostingCursor extends PostingCursor {
+
+    //  Reusable Lucene enums, keyed by field name.
+
+    private static Map<String, TermsEnum> termsEnums = new HashMap<String, TermsEnum>();
+    private static Map<String, DocsAndPositionsEnum> spareEnums =
+        new HashMap<String, DocsAndPositionsEnum>();
+    private static Map<String, DocsEnum> spareDocsEnums =
+        new HashMap<String, DocsEnum>();
+
+    private String field;
+    private DocsEnum iList;
+    private DocsAndPositionsEnum iPositions;	// iList, if it has positions
+    private int docid = -1;
+
+    private LucenePostingCursor(String field, DocsEnum iList, DocsAndPositionsEnum iPositions) {
+        this.field = field;
+        this.iList = iList;
+        this.iPositions = iPositions;
+    }
+
+    /**
+     *  Position the shared TermsEnum of a field on a term.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @return The TermsEnum, or null if the term does not occur in the field.
+     *  @throws IOException
+     */
+    static TermsEnum seek(String termString, String fieldString) throws IOException {
+
+        TermsEnum termsEnum = termsEnums.get(fieldString);
+
+        if (termsEnum == null) {
+            Terms terms = MultiFields.getTerms(QryEval.READER, fieldString);
+            if (terms == null)
+                return null;
+            termsEnum = terms.iterator(null);
+            termsEnums.put(fieldString, termsEnum);
+        }
+
+        if (! termsEnum.seekExact(new BytesRef(termString), true))
+            return null;
+
+        return termsEnum;
+    }
+
+    /**
+     *  Open a cursor on the inverted list of a term.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @return A cursor, or null if the term does not occur in the field.
+     *  @throws IOException
+     */
+    public static LucenePostingCursor open(String termString, String fieldString)
+        throws IOException {
+        return open(termString, fieldString, true);
+    }
+
+    /**
+     *  Open a cursor on the inverted list of a term.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param positions If false, the cursor reads only docids and tfs.
+     *  @return A cursor, or null if the term does not occur in the field.
+     *  @throws IOException
+     */
+    public static LucenePostingCursor open(String termString, String fieldString,
+                                           boolean positions) throws IOException {
+
+        TermsEnum termsEnum = seek(termString, fieldString);
+
+        if (termsEnum == null)
+            return null;
+
+        if (positions) {
+            DocsAndPositionsEnum iList =
+                termsEnum.docsAndPositions(MultiFields.getLiveDocs(QryEval.READER),
+                                           spareEnums.remove(fieldString));
+            return new LucenePostingCursor(fieldString, iList, iList);
+        }
+
+        DocsEnum iList = termsEnum.docs(MultiFields.getLiveDocs(QryEval.READER),
+                                        spareDocsEnums.remove(fieldString),
+                                        DocsEnum.FLAG_FREQS);
+        return new LucenePostingCursor(fieldString, iList, null);
+    }
+
+    public int docID() {
+        return this.docid;
+    }
+
+    public int nextDoc() throws IOException {
+        if (this.iList == null)
+            return NO_MORE_DOCS;
+        this.docid = this.iList.nextDoc();
+        release();
+        return this.docid;
+    }
+
+    public int advance(int target) throws IOException {
+        if (this.iList == null)
+            return NO_MORE_DOCS;
+        this.docid = this.iList.advance(target);
+        release();
+        return this.docid;
+    }
+
+    public int freq() throws IOException {
+        return this.iList.freq();
+    }
+
+    public int nextPosition() throws IOException {
+        return this.iPositions.nextPosition();
+    }
+
+    /**
+     *  Once the list is exhausted, give the Lucene enum back so that
+     *  the next cursor on this field can reuse it.
+     */
+    private void release() {
+        if (this.docid == NO_MORE_DOCS) {
+            if (this.iPositions != null)
+                spareEnums.put(this.field, this.iPositions);
+            else
+                spareDocsEnums.put(this.field, this.iList);
+            this.iList = null;
+            this.iPositions = null;
+        }
+    }
+}
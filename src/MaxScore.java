@@ -0,0 +1,297 @@
+/**
+ *  MaxScore evaluates a top-level BM25 #SUM or #WSUM for the top k
+ *  documents, skipping documents that cannot score high enough.
+ *
+ *  Each argument has an upper bound on the score it can add to a
+ *  document.  The arguments are ordered by bound, and the longest
+ *  prefix whose bounds sum to less than the current threshold (the
+ *  k'th best score so far) is "non-essential": a document that
+ *  matches only those arguments cannot reach the threshold.  So only
+ *  the essential arguments' lists drive the evaluation; a non-essential
+ *  list is advanced to a candidate document only while the candidate's
+ *  score plus the remaining bounds can still reach the threshold.
+ *
+ *  For a term (or other inverted list) argument the bound is found
+ *  without reading the list: its tf is at most ctf-df+1, a document
+ *  with tf occurrences is at least tf long, and tf/(tf+K) grows with tf
+ *  and shrinks with the document length.  For a nested score operator
+ *  the bound is the highest score in its list.
+ *
+ *  The documents that are kept are the ones whose score is at least
+ *  the threshold when they are reached, with the score an exhaustive
+ *  evaluation gives them, so rank() produces the same ranking.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class MaxScore {
+
+    //  Upper bounds are inflated slightly, so that a document is never
+    //  skipped because its score was summed in a different order (or,
+    //  for #WSUM, in float) than its bound.
+
+    private static final double BOUND_SLACK = 1.0 + 1e-5;
+
+    /**
+     *  A cursor over the documents an argument scores, in docid order.
+     */
+    private static abstract class Scorer {
+        int arg;		// the argument's position in the operator
+        double weight;		// its #WSUM weight, or its #SUM qtf
+        double bound;		// the most (weighted) score it can add
+        int doc = -1;
+
+        abstract int nextDoc() throws IOException;
+        abstract int advance(int target) throws IOException;
+        abstract double score() throws IOException;
+    }
+
+    /**
+     *  Scores an inverted list with BM25, as QryopSlScore does.
+     */
+    private static class ListScorer extends Scorer {
+        PostingCursor postings;
+        double rsj;
+        double[] norms;
+
+        int nextDoc() throws IOException {
+            return (this.doc = this.postings.nextDoc());
+        }
+
+        int advance(int target) throws IOException {
+            return (this.doc = this.postings.advance(target));
+        }
+
+        double score() throws IOException {
+            int tf = this.postings.freq();
+            return this.rsj * (tf / ((double)tf + this.norms[this.doc]));
+        }
+    }
+
+    /**
+     *  Reads the scores of a nested score operator.
+     */
+    private static class ScoreListScorer extends Scorer {
+        ScoreList scores;
+        int n = -1;
+
+        int nextDoc() {
+            this.n++;
+            return (this.doc = docAt());
+        }
+
+        int advance(int target) {
+            this.n = this.scores.advance(Math.max(this.n, 0), target);
+            return (this.doc = docAt());
+        }
+
+        private int docAt() {
+            return (this.n < this.scores.size()) ?
+                this.scores.getDocid(this.n) : PostingCursor.NO_MORE_DOCS;
+        }
+
+        double score() {
+            return this.scores.getDocidScore(this.n);
+        }
+    }
+
+    private long docsScored = 0;
+    private long docsSkipped = 0;
+
+    /**
+     *  @return The number of documents whose score was computed by the
+     *  last evaluation.
+     */
+    public long getDocsScored() {
+        return this.docsScored;
+    }
+
+    /**
+     *  @return The number of documents the last evaluation reached but
+     *  stopped scoring, because they could not make the top k.
+     */
+    public long getDocsSkipped() {
+        return this.docsSkipped;
+    }
+
+    /**
+     *  Evaluate a #SUM or #WSUM for the top k documents.
+     *  @param op The operator, a QryopSlSum or QryopSlWSum.
+     *  @param r The BM25 retrieval model.
+     *  @param k The number of documents that will be ranked.
+     *  @return The documents that can be in the top k, with their
+     *  scores, in docid order.
+     *  @throws IOException
+     */
+    public QryResult evaluate(QryopSl op, RetrievalModelBM25 r, int k) throws IOException {
+
+        boolean weighted = (op instanceof QryopSlWSum);
+        int n = op.args.size();
+        Scorer[] scorers = new Scorer[n];
+        for (int i = 0; i < n; i++) {
+            double weight = weighted ? ((QryopSlWSum) op).weight.get(i) :
+                ((QryopSlSum) op).qtf.get(i);
+            scorers[i] = scorer(op.args.get(i), r, weight);
+            scorers[i].arg = i;
+            scorers[i].weight = weight;
+            scorers[i].nextDoc();
+        }
+
+        //  Order the arguments by bound.  sumBound[i] is the sum of the
+        //  bounds of arguments 0..i in this order.
+
+        Arrays.sort(scorers, new Comparator<Scorer>() {
+            public int compare(Scorer a, Scorer b) {
+                return Double.compare(a.bound, b.bound);
+            }
+        });
+        double[] sumBound = new double[n];
+        for (int i = 0; i < n; i++)
+            sumBound[i] = ((i > 0) ? sumBound[i - 1] : 0.0) + scorers[i].bound * BOUND_SLACK;
+
+        //  The contribution of each argument to the current document,
+        //  by argument position, and whether it matched.
+
+        double[] contribution = new double[n];
+        boolean[] matched = new boolean[n];
+
+        TopScores top = new TopScores(k);
+        double threshold = Double.NEGATIVE_INFINITY;
+        int firstEssential = 0;
+
+        QryResult result = new QryResult();
+        this.docsScored = 0;
+        this.docsSkipped = 0;
+
+        while (true) {
+
+            //  The next candidate is the lowest docid of the essential
+            //  arguments.
+
+            int docid = PostingCursor.NO_MORE_DOCS;
+            for (int i = firstEssential; i < n; i++)
+                if (scorers[i].doc < docid)
+                    docid = scorers[i].doc;
+            if (docid == PostingCursor.NO_MORE_DOCS)
+                break;
+
+            Arrays.fill(matched, false);
+            double partial = 0.0;
+            for (int i = firstEssential; i < n; i++) {
+                if (scorers[i].doc == docid) {
+                    double s = scorers[i].weight * scorers[i].score();
+                    contribution[scorers[i].arg] = s;
+                    matched[scorers[i].arg] = true;
+                    partial += s;
+                    scorers[i].nextDoc();
+                }
+            }
+
+            //  Add the non-essential arguments, highest bound first,
+            //  while the document can still reach the threshold.
+
+            boolean skipped = false;
+            for (int i = firstEssential - 1; i >= 0; i--) {
+                if (partial + sumBound[i] < threshold) {
+                    skipped = true;
+                    break;
+                }
+                if (scorers[i].doc < docid)
+                    scorers[i].advance(docid);
+                if (scorers[i].doc == docid) {
+                    double s = scorers[i].weight * scorers[i].score();
+                    contribution[scorers[i].arg] = s;
+                    matched[scorers[i].arg] = true;
+                    partial += s;
+                }
+            }
+            if (skipped) {
+                this.docsSkipped++;
+                continue;
+            }
+            this.docsScored++;
+
+            //  The exact score, summed in the order an exhaustive
+            //  evaluation sums it: #SUM adds the last argument first,
+            //  #WSUM adds in float from the first argument.
+
+            double score;
+            if (weighted) {
+                float wscore = 0.0f;
+                for (int i = 0; i < n; i++)
+                    if (matched[i])
+                        wscore += contribution[i];
+                score = wscore;
+            } else {
+                score = 0.0;
+                for (int i = n - 1; i >= 0; i--)
+                    if (matched[i])
+                        score += contribution[i];
+            }
+
+            if (score < threshold)
+                continue;
+            result.docScores.add(docid, score);
+
+            //  Raise the threshold, and with it the non-essential prefix.
+
+            top.add(score);
+            threshold = top.threshold();
+            while (firstEssential < n && sumBound[firstEssential] < threshold)
+                firstEssential++;
+        }
+        return result;
+    }
+
+    /**
+     *  Create the scorer of an argument, and find its bound.
+     */
+    private static Scorer scorer(Qryop arg, RetrievalModelBM25 r, double weight) throws IOException {
+
+        //  A term's list is opened lazily, so that the postings that are
+        //  skipped are not read.
+
+        QryResult argResult;
+        if (arg instanceof QryopIlTerm) {
+            argResult = new QryResult();
+            argResult.invertedList = ((QryopIlTerm) arg).openLazy();
+        } else
+            argResult = arg.evaluateShared(r);
+
+        if (arg instanceof QryopSl) {
+            ScoreListScorer s = new ScoreListScorer();
+            s.scores = argResult.docScores;
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < s.scores.size(); i++) {
+                max = Math.max(max, s.scores.getDocidScore(i));
+                min = Math.min(min, s.scores.getDocidScore(i));
+            }
+            s.bound = (s.scores.size() == 0) ? 0.0 : Math.max(0.0, Math.max(weight * max, weight * min));
+            return s;
+        }
+
+        InvList list = argResult.invertedList;
+        ListScorer s = new ListScorer();
+        if (list.df == 0) {
+            s.postings = new InvList().cursor();
+            return s;
+        }
+
+        double k1 = r.BM25_k_1;
+        double b = r.BM25_b;
+        int N = QryEval.STATS.numDocs();
+        double avg_doclen = QryEval.STATS.getAvgDocLength(list.field);
+        s.rsj = RetrievalModelBM25.rsj(N, list.df);
+        s.norms = QryEval.dls.getBM25Norms(list.field, k1, b, avg_doclen);
+        s.postings = list.cursor();
+
+        double maxTf = list.ctf - list.df + 1;
+        double tfWeight = maxTf / (maxTf + k1 * ((1 - b) + b * maxTf / avg_doclen));
+        s.bound = Math.max(0.0, weight * s.rsj * tfWeight);
+        return s;
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ *  A PhraseIndex holds the #NEAR/1 inverted lists of frequent pairs of
+ *  adjacent terms, so that a query does not have to intersect the
+ *  positions of the two terms every time it is evaluated.  It is
+ *  produced once, offline:
+ *
+ *    java PhraseIndex indexPath phraseIndexPath field minCount maxPairs [queryFile ...]
+ *
+ *  The pairs come from two places.  Every pair of adjacent terms in the
+ *  query files (as the parser reads them, so stopwords are skipped and
+ *  #NEAR/1 arguments count too) is included.  In addition, the term
+ *  vectors of field are read, and up to maxPairs of the pairs that
+ *  occur next to each other at least minCount times in the collection
+ *  are included, most frequent first.  Each pair's list is computed by
+ *  QryopIlNear, so it is the list a query would compute.
+ *
+ *  The index is a directory with two kinds of files:
+ *
+ *    phrases.bin      The number of documents in the index it was built
+ *                     from, and for each pair its field, its two terms,
+ *                     df, ctf, and a pointer to its inverted list.
+ *    postings.N.bin   Inverted lists in the compressed InvList format,
+ *                     as in CompiledIndex.
+ *
+ *  When a phrase index is open, the parser replaces each #NEAR/1 of two
+ *  terms of the same field that the index holds with a QryopIlPhrase,
+ *  which reads the stored list.  Any other #NEAR is evaluated as usual.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+public class PhraseIndex {
+
+    private int maxDoc;
+    private Map<String, Long> pointers = new HashMap<String, Long>();	// (postings file << 32) | offset
+    private ByteBuffer[] postings;
+
+    private long listsRead = 0;
+
+    /**
+     *  Build a phrase index.
+     *  @param args The Lucene index path, the output directory, the
+     *  field to mine, the minimum count, the maximum number of mined
+     *  pairs, and any number of query files.
+     *  @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 5) {
+            System.err.println("Usage:  java PhraseIndex indexPath phraseIndexPath field minCount maxPairs [queryFile ...]");
+            System.exit(1);
+        }
+
+        QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+        build(args[1], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+              Arrays.copyOfRange(args, 5, args.length));
+    }
+
+    /**
+     *  Write a phrase index of the index that QryEval.READER reads.
+     *  @param path The directory to write the phrase index to.
+     *  @param field The field whose term vectors are mined.
+     *  @param minCount The number of times a pair must occur in the
+     *  collection to be mined.
+     *  @param maxPairs The most pairs to mine from the collection.
+     *  @param queryFiles Query files whose pairs are all included.
+     *  @throws IOException
+     */
+    public static void build(String path, String field, int minCount, int maxPairs,
+                             String[] queryFiles) throws IOException {
+
+        File dir = new File(path);
+        dir.mkdirs();
+
+        //  The pairs, as field, first term, second term.
+
+        SortedSet<String> pairs = new TreeSet<String>();
+
+        for (String queryFile : queryFiles)
+            mineQueries(queryFile, pairs);
+
+        if (maxPairs > 0)
+            pairs.addAll(mineTermVectors(field, minCount, maxPairs));
+
+        //  Compute and write the lists.
+
+        DataOutputStream phrasesOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(dir, "phrases.bin"))));
+        CompiledIndex.PostingsFiles postings = new CompiledIndex.PostingsFiles(dir, "postings");
+        RetrievalModel model = new RetrievalModelUnrankedBoolean();
+
+        phrasesOut.writeInt(QryEval.READER.maxDoc());
+        phrasesOut.writeInt(pairs.size());
+
+        for (String pair : pairs) {
+
+            String[] p = pair.split("\t");
+            QryopIlNear near = new QryopIlNear(1, new QryopIlTerm(p[1], p[0]),
+                                               new QryopIlTerm(p[2], p[0]));
+            near.setNeedsPositions(true);
+            InvList list = near.evaluate(model).invertedList;
+
+            long pointer = postings.startRecord();
+
+            phrasesOut.writeUTF(p[0]);
+            phrasesOut.writeUTF(p[1]);
+            phrasesOut.writeUTF(p[2]);
+            phrasesOut.writeInt(list.df);
+            phrasesOut.writeInt(list.ctf);
+            phrasesOut.writeLong(pointer);
+
+            list.write(postings.out);
+        }
+        phrasesOut.close();
+        postings.close();
+
+        System.out.println("Wrote " + pairs.size() + " phrases to " + path);
+    }
+
+    /**
+     *  Add the pairs of adjacent terms in a query file.  Terms are
+     *  adjacent if they are arguments of the same operator with no
+     *  other argument between them; stopwords are skipped, as the
+     *  parser skips them.  As in the parser, a number is a weight only
+     *  where a #WAND or #WSUM expects one; elsewhere it is a term.
+     */
+    private static void mineQueries(String queryFile, Set<String> pairs) throws IOException {
+
+        BufferedReader in = new BufferedReader(new FileReader(queryFile));
+        String line;
+
+        while ((line = in.readLine()) != null) {
+
+            int colon = line.indexOf(':');
+            if (colon >= 0)
+                line = line.substring(colon + 1);
+
+            StringTokenizer tokens = new StringTokenizer(line, "\t\n\r ,()", true);
+            Stack<String> ops = new Stack<String>();
+            boolean isWeight = true;
+            String prevTerm = null;
+            String prevField = null;
+
+            while (tokens.hasMoreTokens()) {
+                String token = tokens.nextToken();
+                if (token.equals(" "))
+                    continue;
+                if (token.matches("[,(\t\n\r]")) {
+                    isWeight = true;
+                    if (token.equals("("))
+                        prevTerm = null;
+                    continue;
+                }
+                if (token.startsWith("#")) {
+                    ops.push(token.toLowerCase());
+                    prevTerm = null;
+                    continue;
+                }
+                if (token.equals(")")) {
+                    if (! ops.empty())
+                        ops.pop();
+                    isWeight = true;
+                    prevTerm = null;
+                    continue;
+                }
+                if (isWeight && ! ops.empty() &&
+                    (ops.peek().equals("#wand") || ops.peek().equals("#wsum"))) {
+                    isWeight = false;
+                    prevTerm = null;
+                    continue;
+                }
+                isWeight = ! isWeight;
+
+                String[] parts = token.split("\\.");
+                String[] stems = QryEval.tokenizeQuery(parts[0]);
+                if (stems.length == 0)
+                    continue;
+                String term = stems[0];
+                String termField = (parts.length == 2) ? parts[1] : "body";
+
+                if (prevTerm != null && termField.equals(prevField))
+                    pairs.add(termField + "\t" + prevTerm + "\t" + term);
+                prevTerm = term;
+                prevField = termField;
+            }
+        }
+        in.close();
+    }
+
+    /**
+     *  Count the pairs of terms at adjacent positions in the term
+     *  vectors of a field.  A pair cannot occur more often than either
+     *  of its terms, so only pairs of terms whose ctf is at least
+     *  minCount are counted; this keeps the counts from holding every
+     *  distinct pair in the collection.
+     *  @return The most frequent pairs that occur at least minCount times.
+     */
+    private static List<String> mineTermVectors(String field, int minCount, int maxPairs)
+        throws IOException {
+
+        IndexReader reader = QryEval.READER;
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        Set<String> candidates = new HashSet<String>();
+        TermsEnum termsEnum = MultiFields.getTerms(reader, field).iterator(null);
+        while (termsEnum.next() != null)
+            if (termsEnum.totalTermFreq() >= minCount)
+                candidates.add(termsEnum.term().utf8ToString());
+
+        for (int docid = 0; docid < reader.maxDoc(); docid++) {
+            if ((liveDocs != null && ! liveDocs.get(docid)) ||
+                reader.getTermVector(docid, field) == null)
+                continue;
+
+            TermVector tv = new TermVector(docid, field);
+            boolean[] candidate = new boolean[tv.stemsLength()];
+            for (int i = 1; i < candidate.length; i++)
+                candidate[i] = candidates.contains(tv.stemString(i));
+
+            for (int i = 1; i < tv.positionsLength(); i++) {
+                int a = tv.stemAt(i - 1);
+                int b = tv.stemAt(i);
+                if (a > 0 && b > 0 && candidate[a] && candidate[b]) {
+                    String pair = field + "\t" + tv.stemString(a) + "\t" + tv.stemString(b);
+                    Integer count = counts.get(pair);
+                    counts.put(pair, (count == null) ? 1 : count + 1);
+                }
+            }
+        }
+
+        List<String> frequent = new ArrayList<String>();
+        for (Map.Entry<String, Integer> e : counts.entrySet())
+            if (e.getValue() >= minCount)
+                frequent.add(e.getKey());
+        Collections.sort(frequent, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = counts.get(b) - counts.get(a);
+                return (c != 0) ? c : a.compareTo(b);
+            }
+        });
+        return frequent.subList(0, Math.min(maxPairs, frequent.size()));
+    }
+
+    /**
+     *  Open a phrase index.  Its postings files are memory-mapped.
+     *  @param path The directory that holds the phrase index.
+     *  @throws IOException
+     */
+    public PhraseIndex(String path) throws IOException {
+
+        File dir = new File(path);
+
+        DataInputStream phrasesIn = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(new File(dir, "phrases.bin"))));
+        this.maxDoc = phrasesIn.readInt();
+        int numPairs = phrasesIn.readInt();
+        for (int i = 0; i < numPairs; i++) {
+            String field = phrasesIn.readUTF();
+            String a = phrasesIn.readUTF();
+            String b = phrasesIn.readUTF();
+            phrasesIn.readInt();	// df
+            phrasesIn.readInt();	// ctf
+            this.pointers.put(key(a, b, field), phrasesIn.readLong());
+        }
+        phrasesIn.close();
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; new File(dir, "postings." + i + ".bin").exists(); i++)
+            buffers.add(CompiledIndex.open(new File(dir, "postings." + i + ".bin"), false));
+        this.postings = buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    private static String key(String a, String b, String field) {
+        return field + "\t" + a + "\t" + b;
+    }
+
+    /**
+     *  @param reader An index reader.
+     *  @return True if the phrase index was built from an index with as
+     *  many documents as reader's.
+     */
+    public boolean matches(IndexReader reader) {
+        return this.maxDoc == reader.maxDoc();
+    }
+
+    /**
+     *  @return True if the index holds the #NEAR/1 list of a pair.
+     */
+    public boolean contains(String a, String b, String field) {
+        return this.pointers.containsKey(key(a, b, field));
+    }
+
+    /**
+     *  Fetch the #NEAR/1 inverted list of a pair.
+     *  @param a The processed first term.
+     *  @param b The processed second term.
+     *  @param field The field that the terms occur in.
+     *  @param positions If false, read only docids and tfs.
+     *  @return The inverted list, or null if the index does not hold it.
+     */
+    public InvList getInvList(String a, String b, String field, boolean positions) {
+
+        Long pointer = this.pointers.get(key(a, b, field));
+        if (pointer == null)
+            return null;
+
+        ByteBuffer buf = this.postings[(int) (pointer >>> 32)].duplicate();
+        buf.position((int) (pointer & 0xFFFFFFFFL));
+        this.listsRead++;
+        return new InvList(field, buf, positions);
+    }
+
+    /**
+     *  Replace an operator with a QryopIlPhrase, if it is a #NEAR/1 of
+     *  two terms of the same field whose list the index holds.
+     *  @param op A query operator.
+     *  @return The QryopIlPhrase, or op.
+     */
+    public Qryop rewrite(Qryop op) {
+
+        if (! (op instanceof QryopIlNear) ||
+            ((QryopIlNear) op).adjacency != 1 ||
+            op.args.size() != 2 ||
+            ! (op.args.get(0) instanceof QryopIlTerm) ||
+            ! (op.args.get(1) instanceof QryopIlTerm))
+            return op;
+
+        QryopIlTerm a = (QryopIlTerm) op.args.get(0);
+        QryopIlTerm b = (QryopIlTerm) op.args.get(1);
+        if (! a.field.equals(b.field) || ! contains(a.term, b.term, a.field))
+            return op;
+
+        return new QryopIlPhrase((QryopIlNear) op, a.term, b.term, a.field);
+    }
+
+    /**
+     *  Print the number of lists read from the index.
+     *  @return void
+     */
+    public void printStats() {
+        System.out.println("Phrase index: " + this.listsRead + " lists read");
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *  A PostingCache keeps recently used inverted lists in memory so that
+ *  a term that occurs in many queries (or in both the original and the
+ *  expanded query) is read from the index only once.  It is shared by
+ *  all query operators in the process.
+ *
+ *  Inverted lists are cached in their serialized form (see
+ *  InvList.write), keyed by (term, field).  Each hit returns a new
+ *  InvList copied from the cached bytes, so callers can never change
+ *  a cached list.  The bytes are on the heap, or, in off-heap mode, in
+ *  direct buffers that the garbage collector does not have to scan.
+ *
+ *  The cache has a budget in bytes.  It is divided into stripes, each
+ *  with its own lock and an equal share of the budget; when a stripe
+ *  exceeds its share, its least recently used lists are evicted.
+ *  Hits, misses and evictions are counted so that the budget can be
+ *  sized.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PostingCache {
+
+    static final int NUM_STRIPES = 16;
+
+    //  The approximate cost of an entry in addition to its postings.
+
+    static final int ENTRY_OVERHEAD = 96;
+
+    private static class Entry {
+        ByteBuffer bytes;
+        boolean positions;	// True if the list has positions
+        long size;
+    }
+
+    private static class Stripe {
+        LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        long size = 0;
+    }
+
+    private Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private long stripeBudget;
+    private boolean offHeap;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     *  Create an empty cache.
+     *  @param maxBytes The memory budget of the cache.
+     *  @param offHeap If true, keep the postings in direct buffers.
+     */
+    public PostingCache(long maxBytes, boolean offHeap) {
+        for (int i = 0; i < NUM_STRIPES; i++)
+            this.stripes[i] = new Stripe();
+        this.stripeBudget = maxBytes / NUM_STRIPES;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     *  Get the inverted list of a term, from the cache if possible.  A
+     *  cached list without positions does not satisfy a request for
+     *  positions; it is read again and replaced.
+     *  @param termString The processed (stemmed, lower-cased, etc) term string.
+     *  @param fieldString The field that the term occurs in.
+     *  @param positions If false, the list need not have positions.
+     *  @return A new inverted list that belongs to the caller.
+     *  @throws IOException
+     */
+    public InvList get(String termString, String fieldString, boolean positions)
+        throws IOException {
+
+        String key = fieldString + "\u0000" + termString;
+        Stripe stripe = this.stripes[(key.hashCode() & 0x7fffffff) % NUM_STRIPES];
+        ByteBuffer bytes = null;
+
+        synchronized (stripe) {
+            Entry e = stripe.entries.get(key);
+            if ((e != null) && (e.positions || ! positions))
+                bytes = e.bytes.duplicate();
+        }
+
+        if (bytes != null) {
+            this.hits.incrementAndGet();
+            return new InvList(fieldString, bytes, positions);
+        }
+
+        this.misses.incrementAndGet();
+        InvList list = new InvList(termString, fieldString, false, positions);
+        put(stripe, key, list);
+        return list;
+    }
+
+    /**
+     *  Add an inverted list to a stripe, and evict the least recently
+     *  used lists until the stripe is within its budget.  A list that
+     *  is larger than the budget of a stripe is not cached.
+     */
+    private void put(Stripe stripe, String key, InvList list) throws IOException {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        list.write(out);
+        out.close();
+
+        Entry e = new Entry();
+        e.positions = list.hasPositions;
+        e.size = buffer.size() + 2L * key.length() + ENTRY_OVERHEAD;
+
+        if (e.size > this.stripeBudget)
+            return;
+
+        if (this.offHeap) {
+            e.bytes = ByteBuffer.allocateDirect(buffer.size());
+            e.bytes.put(buffer.toByteArray());
+            e.bytes.flip();
+        } else {
+            e.bytes = ByteBuffer.wrap(buffer.toByteArray());
+        }
+
+        synchronized (stripe) {
+            Entry old = stripe.entries.put(key, e);
+            if (old != null)
+                stripe.size -= old.size;
+            stripe.size += e.size;
+
+            Iterator<Entry> lru = stripe.entries.values().iterator();
+            while (stripe.size > this.stripeBudget) {
+                Entry victim = lru.next();
+                lru.remove();
+                stripe.size -= victim.size;
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     *  @return The number of requests that were answered from the cache.
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     *  @return The number of requests that read the index.
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     *  @return The number of lists that were evicted.
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     *  @return The number of bytes that the cached lists use.
+     */
+    public long getSize() {
+        long size = 0;
+        for (Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     *  Print the cache counters.
+     *  @return void
+     */
+    public void printStats() {
+        System.out.println("Posting cache:  " + getHits() + " hits, " +
+                           getMisses() + " misses, " +
+                           getEvictions() + " evictions, " +
+                           (getSize() / 1024L) + " KB used");
+    }
+}
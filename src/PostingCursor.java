@@ -0,0 +1,78 @@
+/**
+ *  A PostingCursor iterates over the postings of one inverted list in
+ *  docid order.  It is modeled on Lucene's DocsAndPositionsEnum, so
+ *  that query operators can read an in-memory InvList and a list that
+ *  is still in the Lucene index in the same way.
+ *
+ *  A cursor starts before the first posting (docID() is -1).  After
+ *  the last posting, docID() is NO_MORE_DOCS.
+ *
+ *  The cursor of a positional operator may stop at documents that the
+ *  operator does not match, and confirm them with matches(); see
+ *  QryopIlPositional.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+public abstract class PostingCursor {
+
+    public static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+    /**
+     *  @return The current document id, -1 before the first call to
+     *  nextDoc, or NO_MORE_DOCS when the list is exhausted.
+     */
+    public abstract int docID();
+
+    /**
+     *  Move to the next posting.
+     *  @return The next document id, or NO_MORE_DOCS.
+     *  @throws IOException
+     */
+    public abstract int nextDoc() throws IOException;
+
+    /**
+     *  Move to the first posting whose docid is at least target.  The
+     *  target must be greater than the current docid.
+     *  @param target The docid to advance to.
+     *  @return The new current docid, or NO_MORE_DOCS.
+     *  @throws IOException
+     */
+    public abstract int advance(int target) throws IOException;
+
+    /**
+     *  @return The term frequency in the current document.
+     *  @throws IOException
+     */
+    public abstract int freq() throws IOException;
+
+    /**
+     *  Return the next position in the current document.  It may be
+     *  called at most freq() times per document.
+     *  @return The next position.
+     *  @throws IOException
+     */
+    public abstract int nextPosition() throws IOException;
+
+    /**
+     *  Confirm that the current document is a posting.  Most cursors
+     *  stop only at their postings, so this is true; a two-phase
+     *  cursor checks the document here.
+     *  @return True if the current document is a posting.
+     *  @throws IOException
+     */
+    public boolean matches() throws IOException {
+        return true;
+    }
+
+    /**
+     *  @return An estimate of the cost of matches(), 0 if it is free.
+     */
+    public float matchCost() {
+        return 0;
+    }
+}
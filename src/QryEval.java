@@ -29,6 +29,22 @@ public class QryEval {
     public static float letor_mu = 0.0f;
     public static float letor_lambda = 0.0f;
     public static DocLengthStore dls;
+    /* posting list parameters */
+    public static boolean postings_lazy = false;
+    public static CompiledIndex compiledIndex = null;
+    public static ExternalIdTable externalIds = null;
+    public static ExternalIdIndex externalIdIndex = null;	// built on first use
+    public static ImpactIndex impactIndex = null;
+    public static BlockMaxIndex blockMaxIndex = null;
+    public static PhraseIndex phraseIndex = null;
+    public static long impact_budget = -1;
+    public static PostingCache postingCache = null;
+    /* ranking parameters */
+    public static int rank_k = 100;
+    public static String rank_strategy = "exhaustive";	// or maxscore, bmw, impact, daat
+    /* query rewriting (see QryOptimizer) */
+    public static boolean query_optimize = false;
+    public static boolean query_explain = false;
 
     static String usage = "Usage:  java " + System.getProperty("sun.java.command")
                           + " paramFile\n\n";
@@ -39,6 +55,7 @@ public class QryEval {
     //  own headaches.
 
     public static IndexReader READER;
+    public static IndexStats STATS;	// collection and term statistics of READER
     //  Create and configure an English analyzer that will be used for query parsing.
 
     public static EnglishAnalyzerConfigurable analyzer =
@@ -85,6 +102,71 @@ public class QryEval {
             System.err.println(usage);
             System.exit(1);
         }
+        STATS = new IndexStats(READER);
+
+        // posting list access mode
+        if (params.containsKey("postings:lazy")) {
+            postings_lazy = Boolean.parseBoolean(params.get("postings:lazy"));
+        }
+
+        // open the compiled index (see CompiledIndex), if there is one
+        if (params.containsKey("compiledIndexPath")) {
+            compiledIndex = new CompiledIndex(params.get("compiledIndexPath"),
+                                              Boolean.parseBoolean(params.get("compiledIndex:heap")));
+        }
+
+        // load the docid to external id table, from a sidecar file if one is given
+        if (compiledIndex != null) {
+            externalIds = compiledIndex.getExternalIdTable();
+        } else if (params.containsKey("externalIdsPath")) {
+            externalIds = ExternalIdTable.open(READER, params.get("externalIdsPath"));
+        } else {
+            externalIds = ExternalIdTable.build(READER);
+        }
+
+        // and the external id to docid index, if it is persisted
+        if (compiledIndex != null) {
+            externalIdIndex = compiledIndex.getExternalIdIndex();
+        } else if (params.containsKey("externalIdIndexPath")) {
+            externalIdIndex = ExternalIdIndex.open(READER, externalIds,
+                                                   params.get("externalIdIndexPath"));
+        }
+
+        // open the phrase index (see PhraseIndex), if there is one
+        if (params.containsKey("phraseIndexPath")) {
+            phraseIndex = new PhraseIndex(params.get("phraseIndexPath"));
+            if (! phraseIndex.matches(READER)) {
+                System.err.println("Warning: The phrase index does not match the index; not using it.");
+                phraseIndex = null;
+            }
+        }
+
+        // the number of documents that rank() keeps
+        if (params.containsKey("rank:k")) {
+            rank_k = Integer.parseInt(params.get("rank:k"));
+        }
+        if (params.containsKey("fbDocs")) {
+            rank_k = Math.max(rank_k, Integer.parseInt(params.get("fbDocs")));
+        }
+
+        // how a top-level BM25 #SUM or #WSUM finds the top rank_k
+        if (params.containsKey("rank:strategy")) {
+            rank_strategy = params.get("rank:strategy").toLowerCase();
+        }
+
+        // rewrite queries before they are evaluated, and say how
+        if (params.containsKey("query:optimize")) {
+            query_optimize = Boolean.parseBoolean(params.get("query:optimize"));
+        }
+        if (params.containsKey("query:explain")) {
+            query_explain = Boolean.parseBoolean(params.get("query:explain"));
+        }
+
+        // cache inverted lists across queries, if a budget is given
+        if (params.containsKey("postingCache:maxBytes")) {
+            postingCache = new PostingCache(Long.parseLong(params.get("postingCache:maxBytes")),
+                                            Boolean.parseBoolean(params.get("postingCache:offHeap")));
+        }
 
         // initialize the appropriate retrieval model
         RetrievalModel model = new RetrievalModelRankedBoolean();
@@ -96,7 +178,7 @@ public class QryEval {
         }
         else if (params.get("retrievalAlgorithm").equals("BM25")) {
             model = new RetrievalModelBM25();
-            dls = new DocLengthStore(READER);
+            dls = openDocLengthStore(params);
             if (!params.containsKey("BM25:k_1") || !params.containsKey("BM25:b") || !params.containsKey("BM25:k_3")) {
                 System.err.println("Error: Parameters were missing for BM25.");
                 System.exit(1);
@@ -108,7 +190,7 @@ public class QryEval {
         }
         else if (params.get("retrievalAlgorithm").equals("Indri")) {
             model = new RetrievalModelIndri();
-            dls = new DocLengthStore(READER);
+            dls = openDocLengthStore(params);
             if (!params.containsKey("Indri:mu") || !params.containsKey("Indri:lambda")) {
                 System.err.println("Error: Parameters were missing for Indri.");
                 System.exit(1);
@@ -119,7 +201,7 @@ public class QryEval {
         }
         else if (params.get("retrievalAlgorithm").equals("letor")) {
             model = new RetrievalModelLearningtoRank();
-            dls = new DocLengthStore(READER);
+            dls = openDocLengthStore(params);
             if (!params.containsKey("Indri:mu") || !params.containsKey("Indri:lambda") ||
                     !params.containsKey("BM25:k_1") || !params.containsKey("BM25:b") || !params.containsKey("BM25:k_3")) {
                 System.err.println("Error: Parameters were missing for Indri.");
@@ -136,6 +218,31 @@ public class QryEval {
             System.exit(1);
         }
 
+        // open the impact index (see ImpactIndex), for rank:strategy=impact;
+        // it is only used for BM25 with the parameters it was built for
+        if (params.containsKey("impactIndexPath")) {
+            impactIndex = new ImpactIndex(params.get("impactIndexPath"));
+            if (! (model instanceof RetrievalModelBM25) ||
+                ! impactIndex.matches(((RetrievalModelBM25) model).BM25_k_1,
+                                      ((RetrievalModelBM25) model).BM25_b)) {
+                System.err.println("Warning: The impact index does not match the retrieval model; not using it.");
+                impactIndex = null;
+            }
+        }
+        // and the block-max index (see BlockMaxIndex), for rank:strategy=bmw
+        if (params.containsKey("blockMaxIndexPath")) {
+            blockMaxIndex = new BlockMaxIndex(params.get("blockMaxIndexPath"));
+            if (! (model instanceof RetrievalModelBM25) ||
+                ! blockMaxIndex.matches(((RetrievalModelBM25) model).BM25_k_1,
+                                        ((RetrievalModelBM25) model).BM25_b)) {
+                System.err.println("Warning: The block-max index does not match the retrieval model; not using it.");
+                blockMaxIndex = null;
+            }
+        }
+        if (params.containsKey("impact:budget")) {
+            impact_budget = Long.parseLong(params.get("impact:budget"));
+        }
+
         // scan the query file
         BufferedWriter writer = null;
         writer = new BufferedWriter(new FileWriter(new File(
@@ -224,11 +331,15 @@ public class QryEval {
                 fv.tokens = tokens;
                 fv.mask = mask;
                 fv.pagerank_map = pagerank_map;
+                String curr_ext_ids[] = new String[relevance_ls.size()];
                 for (int i = 0; i < relevance_ls.size(); ++i)
                 {
-                    String curr_ext_id = relevance_ls.get(i).split("\\s+")[2];
-                    int curr_int_id = getInternalDocid(curr_ext_id);
-                    ls.add(fv.generateFeatureVector(curr_int_id));
+                    curr_ext_ids[i] = relevance_ls.get(i).split("\\s+")[2];
+                }
+                int curr_int_ids[] = getInternalDocids(curr_ext_ids, curr_ext_ids.length);
+                for (int i = 0; i < relevance_ls.size(); ++i)
+                {
+                    ls.add(fv.generateFeatureVector(curr_int_ids[i]));
                 }
                 // normalize the feature vector
                 ArrayList<String> normalized_fv = fv.generateNormalizedFeatureVector(ls);
@@ -331,7 +442,7 @@ public class QryEval {
                 model.setParameter("b", Double.parseDouble(params.get("BM25:b")));
                 model.setParameter("k3", Double.parseDouble(params.get("BM25:k_3")));
                 qTree = parseQuery (testing_line, model_bm25_for_letor);
-                QryResult result = qTree.evaluate (model_bm25_for_letor);
+                QryResult result = evaluateQuery (qTree, model_bm25_for_letor);
 
                 System.out.println("$$ letor BM25 Rank begin");
                 if (result != null) {
@@ -340,7 +451,7 @@ public class QryEval {
                 System.out.println("$$ letor BM25 Rank end");
 
                 ArrayList<Integer> svm_top_docid = new ArrayList<Integer>();
-                for (int i = 0; i < Math.min(100, result.docScores.scores.size()); ++i) {
+                for (int i = 0; i < Math.min(100, result.docScores.size()); ++i) {
                     svm_top_docid.add(result.docScores.getDocid(i));
                 }
                 System.out.println("$$ Calculate feature vectors for top 100 ranked documents(for each query)");
@@ -471,6 +582,12 @@ public class QryEval {
             } while(queryScanner.hasNext());
             queryScanner.close();
             printMemoryUsage(true);
+            if (postingCache != null)
+                postingCache.printStats();
+            if (blockMaxIndex != null)
+                blockMaxIndex.printStats();
+            if (phraseIndex != null)
+                phraseIndex.printStats();
         }
 
         // non-letor, iteratively process all the queries
@@ -500,7 +617,7 @@ public class QryEval {
                     System.out.println(">> No expansion, directly retrieve");
                     Qryop qTree;
                     qTree = parseQuery (queryLine, model);
-                    QryResult result = qTree.evaluate (model);
+                    QryResult result = evaluateQuery (qTree, model);
 
                     System.out.println(">> Rank begin");
                     if (result != null) {
@@ -539,7 +656,7 @@ public class QryEval {
                         System.out.println(">> Query expansion without reference system");
                         Qryop qTree;
                         qTree = parseQuery (queryLine, model);
-                        QryResult result = qTree.evaluate (model);
+                        QryResult result = evaluateQuery (qTree, model);
 
                         System.out.println(">> Rank begin");
                         if (result != null) {
@@ -547,7 +664,7 @@ public class QryEval {
                         }
                         System.out.println(">> Rank end");
                         //query expansion
-                        for (int i = 0; i < Math.min(Integer.parseInt(params.get("fbDocs")), result.docScores.scores.size()); ++i) {
+                        for (int i = 0; i < Math.min(Integer.parseInt(params.get("fbDocs")), result.docScores.size()); ++i) {
                             top_docid.add(result.docScores.getDocid(i));
                             top_scores.add(result.docScores.getDocidScore(i));
                         }
@@ -564,7 +681,7 @@ public class QryEval {
                     ArrayList<HashMap<String, Double>> doc_hm = new ArrayList<HashMap<String, Double>>();
                     // prepare some global variables that remains constant for any document, any term
                     double fbMu = Double.parseDouble(params.get("fbMu"));
-                    double length_C = (double)QryEval.READER.getSumTotalTermFreq("body");
+                    double length_C = (double)QryEval.STATS.getSumTotalTermFreq("body");
 
                     // loop 1: go through all the top docs, store terms and their ctf in a hashmap
                     for (int i = 0; i < top_docid.size(); ++i) {
@@ -663,7 +780,7 @@ public class QryEval {
                     System.out.println(">> RETRIEVE WITH  " + combined_query);
                     Qryop qTree;
                     qTree = parseQuery (combined_query, model);
-                    QryResult result = qTree.evaluate (model);
+                    QryResult result = evaluateQuery (qTree, model);
 
                     System.out.println(">> New rank begin");
                     if (result != null) {
@@ -678,6 +795,12 @@ public class QryEval {
             queryScanner.close();
 
             printMemoryUsage(false);
+            if (postingCache != null)
+                postingCache.printStats();
+            if (blockMaxIndex != null)
+                blockMaxIndex.printStats();
+            if (phraseIndex != null)
+                phraseIndex.printStats();
         }
     }
 
@@ -705,17 +828,93 @@ public class QryEval {
     }
 
     /**
-     * rank the results by score.
+     * rank the results by score, and keep the top rank_k (rank:k).
+     * Ties at the rank_k'th score are broken by comparing the external
+     * ids in the table, so only the top rank_k documents have their
+     * external ids loaded.
      * @param result
      * @throws IOException
      */
     static void rank (QryResult result) throws IOException {
-        // first, set the externalId
-        for (ScoreList.ScoreListEntry sle : result.docScores.scores) {
-            sle.setExternalID(getExternalDocid(sle.docid));
+        ScoreList docScores = result.docScores;
+        // first, select the top rank_k
+        docScores.keepTopScores(rank_k, externalIds);
+        // then, set their externalId
+        int[] docids = new int[docScores.size()];
+        for (int i = 0; i < docids.length; i++) {
+            docids[i] = docScores.getDocid(i);
+        }
+        String[] eids = getExternalDocids(docids, docids.length);
+        for (int i = 0; i < docids.length; i++) {
+            docScores.setExternalId(i, eids[i]);
         }
-        // then,  rank the results by score
-        result.docScores.sortByScore();
+        // finally, rank them by score
+        docScores.sortByScore();
+        docScores.truncate(rank_k);
+    }
+
+    /**
+     *  Evaluate a query.  rank:strategy decides how a BM25 #SUM or
+     *  #WSUM finds the top rank_k: maxscore uses MaxScore, bmw uses
+     *  Block-Max WAND with the block-max index for a #SUM of terms (and
+     *  MaxScore for other queries), and impact evaluates a #SUM of terms
+     *  score-at-a-time with the impact index, whose scores are
+     *  quantized, if it has impacts for all of the terms.  With
+     *  rank:strategy=daat, a query of any retrieval model is compiled
+     *  into DocIterators and evaluated without intermediate score
+     *  lists, if its operators can be.  Any other query is evaluated
+     *  by its operators.
+     *  @param qTree The query.
+     *  @param model The retrieval model.
+     *  @return The result of evaluating the query.
+     *  @throws IOException
+     */
+    static QryResult evaluateQuery (Qryop qTree, RetrievalModel model) throws IOException {
+        if (rank_strategy.equals("daat") && qTree instanceof QryopSl) {
+            DocIterator it = ((QryopSl) qTree).iterator(model);
+            if (it != null)
+                return DocIterator.collect(it, rank_k);
+        }
+        if (! (model instanceof RetrievalModelBM25))
+            return qTree.evaluate(model);
+
+        List<QryopIlTerm> terms = null;
+        if (qTree instanceof QryopSlSum && ! ((QryopSlSum) qTree).hasRepeatedArgs()) {
+            terms = new ArrayList<QryopIlTerm>();
+            for (Qryop arg : qTree.args) {
+                if (arg instanceof QryopIlTerm)
+                    terms.add((QryopIlTerm) arg);
+            }
+            if (terms.size() != qTree.args.size())
+                terms = null;
+        }
+
+        if (rank_strategy.equals("impact") && impactIndex != null &&
+            terms != null && impactIndex.canEvaluate(terms))
+            return impactIndex.evaluate(terms, rank_k, impact_budget);
+        if (rank_strategy.equals("bmw") && blockMaxIndex != null &&
+            terms != null && blockMaxIndex.canEvaluate(terms))
+            return blockMaxIndex.evaluate(terms, (RetrievalModelBM25) model, rank_k);
+        if ((rank_strategy.equals("maxscore") || rank_strategy.equals("bmw")) &&
+            (qTree instanceof QryopSlSum || qTree instanceof QryopSlWSum))
+            return new MaxScore().evaluate((QryopSl) qTree, (RetrievalModelBM25) model, rank_k);
+        return qTree.evaluate(model);
+    }
+
+    /**
+     *  Open the document lengths: those of the compiled index if one is
+     *  open, else the file named by docLengthsPath (written on first
+     *  use, then memory-mapped), else lengths loaded from the index.
+     *  @param params The parameters.
+     *  @return The document length store.
+     *  @throws IOException
+     */
+    static DocLengthStore openDocLengthStore (Map<String, String> params) throws IOException {
+        if (compiledIndex != null)
+            return compiledIndex.getDocLengthStore();
+        if (params.containsKey("docLengthsPath"))
+            return DocLengthStore.open(READER, params.get("docLengthsPath"));
+        return new DocLengthStore(READER);
     }
 
     /**
@@ -733,26 +932,57 @@ public class QryEval {
     /**
      *  Get the external document id for a document specified by an
      *  internal document id. If the internal id doesn't exists, returns null.
+     *  The id comes from the external id table once it is loaded.
      *
      * @param iid The internal document id of the document.
      * @throws IOException
      */
     static String getExternalDocid (int iid) throws IOException {
+        if (externalIds != null)
+            return externalIds.get (iid);
         Document d = QryEval.READER.document (iid);
         String eid = d.get ("externalId");
         return eid;
     }
 
+    /**
+     *  Get the external document ids of several documents at once.
+     *
+     * @param iids Internal document ids.
+     * @param n The number of ids to look up.
+     * @return The external ids, in the same order.
+     * @throws IOException
+     */
+    static String[] getExternalDocids (int[] iids, int n) throws IOException {
+        if (externalIds != null)
+            return externalIds.get (iids, n);
+        String[] eids = new String[n];
+        for (int i = 0; i < n; i++)
+            eids[i] = getExternalDocid (iids[i]);
+        return eids;
+    }
+
     /**
      *  Finds the internal document id for a document specified by its
      *  external id, e.g. clueweb09-enwp00-88-09710.  If no such
-     *  document exists, it throws an exception.
+     *  document exists, it throws an exception.  The lookup is a binary
+     *  search in the external id index, which is built on first use if
+     *  it was not loaded from a file.
      *
      * @param externalId The external document id of a document.s
      * @return An internal doc id suitable for finding document vectors etc.
      * @throws Exception
      */
     static int getInternalDocid (String externalId) throws Exception {
+        if (externalIds != null) {
+            if (externalIdIndex == null)
+                externalIdIndex = ExternalIdIndex.build(READER, externalIds);
+            int docid = externalIdIndex.get(externalId);
+            if (docid < 0)
+                throw new Exception("External id not found.");
+            return docid;
+        }
+
         Query q = new TermQuery(new Term("externalId", externalId));
 
         IndexSearcher searcher = new IndexSearcher(QryEval.READER);
@@ -767,6 +997,32 @@ public class QryEval {
         }
     }
 
+    /**
+     *  Finds the internal document ids of several documents at once.
+     *  If any of them does not exist, it throws an exception.
+     *
+     * @param externalIds External document ids.
+     * @param n The number of ids to look up.
+     * @return The internal doc ids, in the same order.
+     * @throws Exception
+     */
+    static int[] getInternalDocids (String[] externalIds, int n) throws Exception {
+        if (QryEval.externalIds == null) {
+            int[] docids = new int[n];
+            for (int i = 0; i < n; i++)
+                docids[i] = getInternalDocid(externalIds[i]);
+            return docids;
+        }
+
+        if (externalIdIndex == null)
+            externalIdIndex = ExternalIdIndex.build(READER, QryEval.externalIds);
+        int[] docids = externalIdIndex.get(externalIds, n);
+        for (int i = 0; i < n; i++)
+            if (docids[i] < 0)
+                throw new Exception("External id not found.");
+        return docids;
+    }
+
     /**
      * parseQuery converts a query string into a query tree.
      *
@@ -849,7 +1105,7 @@ public class QryEval {
                 Qryop arg = currentOp;
                 currentOp = stack.peek();
                 if(arg.args.size() != 0)
-                    currentOp.add(arg);
+                    currentOp.add(phraseIndex == null ? arg : phraseIndex.rewrite(arg));
             } else {
                 // split the token into term and field
                 if (isWeight == 1 && (currentOp instanceof QryopSlWAnd || currentOp instanceof QryopSlWSum)) {
@@ -915,6 +1171,31 @@ public class QryEval {
             return null;
         }
 
+        //  Rewrite the query (see QryOptimizer) if that is enabled.
+
+        if (currentOp != null && query_optimize) {
+            QryOptimizer optimizer = new QryOptimizer(model);
+            String original = currentOp.toString();
+            currentOp = optimizer.optimize(currentOp);
+            if (query_explain)
+                optimizer.explain(original, currentOp);
+        }
+
+        //  The top-level operator's result is only scored, so positions
+        //  are read only where a positional operator asks for them.
+
+        if (currentOp != null)
+            currentOp.setNeedsPositions(false);
+
+        //  Repeated subtrees are evaluated once (see QrySharing).
+
+        if (currentOp != null) {
+            List<Qryop> shared = QrySharing.share(currentOp);
+            if (query_explain)
+                for (Qryop op : shared)
+                    System.out.println("  shared " + op + " among " + op.uses + " operators");
+        }
+
         return currentOp;
     }
 
@@ -944,19 +1225,19 @@ public class QryEval {
      * QueryID Q0 DocID Rank Score RunID
      *
      * @param queryName Original query.
-     * @param result Result object
+     * @param result Result object, ranked by rank()
      * @throws IOException
      */
     static void printResults(String queryName, QryResult result, int queryID) throws IOException {
 
-        if (result.docScores.scores.size() < 1) {
+        if (result.docScores.size() < 1) {
             System.out.println(queryID + "\t" + "Q0" + "\t" + "dummy" + "\t" +
                                "1" + "\t" + "0" + "\t" + "run-1");
         } else {
-            for (int i = 0; i < result.docScores.scores.size(); i++) {
+            for (int i = 0; i < result.docScores.size(); i++) {
                 if (i >= 100) break;
                 System.out.println(queryID + "\t" + "Q0"
-                                   + "\t" + getExternalDocid (result.docScores.getDocid(i))
+                                   + "\t" + result.docScores.getExternalId(i)
                                    + "\t" + Integer.toString(i+1)
                                    + "\t" + result.docScores.getDocidScore(i)
                                    + "\t" + "run-1");
@@ -967,22 +1248,22 @@ public class QryEval {
      * writes results to the file specified in parameterFile
      * @param writer
      * @param queryName
-     * @param result
+     * @param result ranked by rank()
      * @param queryID
      * @throws IOException
      */
     static void writeResults(BufferedWriter writer, String queryName,
                              QryResult result, int queryID) throws IOException {
 
-        if (result.docScores.scores.size() < 1) {
+        if (result.docScores.size() < 1) {
             String towrite = queryID + "\t" + "Q0" + "\t" + "dummy" + "\t" +
                              "1" + "\t" + "0" + "\t" + "run-1" + "\n";
             writer.write(towrite);
         } else {
-            for (int i = 0; i < result.docScores.scores.size(); i++) {
+            for (int i = 0; i < result.docScores.size(); i++) {
                 if (i >= 100) break;
                 String towrite = queryID + "\t" + "Q0"
-                                 + "\t" + getExternalDocid (result.docScores.getDocid(i))
+                                 + "\t" + result.docScores.getExternalId(i)
                                  + "\t" + Integer.toString(i+1)
                                  + "\t" + result.docScores.getDocidScore(i)
                                  + "\t" + "run-1" + "\n";
@@ -0,0 +1,330 @@
+/**
+ *  A QryOptimizer rewrites a query tree after it is parsed and before
+ *  it is evaluated, so that it is cheaper to evaluate.  A rewrite is
+ *  only done where it gives every document the score that the original
+ *  tree gives it (up to floating point rounding, where a sum is
+ *  reordered, weights are added, or x^1 becomes x), so some of them
+ *  depend on the retrieval model.  The tree is rewritten bottom up:
+ *
+ *    Flatten    #SUM(#SUM(a b) c) becomes #SUM(a b c).  With the
+ *               boolean models, #AND in #AND and #OR in #OR are
+ *               flattened too.  Indri's #AND is a geometric mean, and
+ *               does not nest that way.
+ *    Fold       A term that is repeated in a #SUM is kept once, and
+ *               its score is counted qtf times (see QryopSlSum.qtf; it
+ *               prints as term^qtf).  In a #WAND or #WSUM, the repeated
+ *               term's weights are added, except in an Indri #WSUM below
+ *               the top of the query: its default score is the geometric
+ *               mean of its arguments' defaults, which depends on how
+ *               many arguments it has.  With the boolean models, a term
+ *               that is repeated in an #AND or #OR is dropped.
+ *    Drop       An argument whose weight is 0 and that matches no
+ *               documents is dropped where it is inert: in an Indri
+ *               #WAND, which skips zero exponents, and in a #WSUM of the
+ *               other models, whose default scores are 0.  A boolean
+ *               #WAND is an exact-match AND, which such an argument makes
+ *               match nothing, and an Indri #WSUM's default score would
+ *               change, so they keep it.  Not all of the weights may be
+ *               dropped.
+ *    Order      The arguments of #AND, #OR and #WAND are ordered by
+ *               estimated df, fewest documents first, with the boolean
+ *               models.  The min and max of their scores do not depend
+ *               on the order; sums do, in the last bits, so the
+ *               arguments of other operators keep their order.
+ *    Unwrap     A #SUM, or a boolean #AND or #OR, with one argument is
+ *               replaced by the argument.  With Indri, an operator's
+ *               default score is not always its argument's, so only a
+ *               one-argument operator at the top of the query is
+ *               replaced.  The top of the query is always a score list
+ *               operator.
+ *
+ *  QryEval optimizes queries if query:optimize=true, and prints each
+ *  query before and after, with the rewrites, if query:explain=true.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryOptimizer {
+
+    private RetrievalModel model;
+    private boolean booleanModel;
+    private List<String> rewrites = new ArrayList<String>();
+
+    /**
+     *  @param model The retrieval model that the query will be
+     *  evaluated with.
+     */
+    public QryOptimizer(RetrievalModel model) {
+        this.model = model;
+        this.booleanModel = (model instanceof RetrievalModelUnrankedBoolean ||
+                             model instanceof RetrievalModelRankedBoolean);
+    }
+
+    /**
+     *  Rewrite a query tree.  Its operators may be changed.
+     *  @param q The query tree.
+     *  @return The rewritten query tree.
+     *  @throws IOException
+     */
+    public Qryop optimize(Qryop q) throws IOException {
+        return rewrite(q, true);
+    }
+
+    /**
+     *  @return A description of each rewrite done so far, in order.
+     */
+    public List<String> getRewrites() {
+        return this.rewrites;
+    }
+
+    /**
+     *  Print a query before and after it was optimized, and the
+     *  rewrites in between.
+     *  @param original The query before it was optimized.
+     *  @param optimized The query after it was optimized.
+     *  @return void
+     */
+    public void explain(String original, Qryop optimized) {
+        System.out.println("Query:     " + original);
+        for (String rewrite : this.rewrites)
+            System.out.println("  " + rewrite);
+        System.out.println("Optimized: " + optimized);
+    }
+
+    /**
+     *  Rewrite an operator, after its arguments.
+     *  @param op The operator.
+     *  @param root True if op is the top of the query.
+     *  @return The operator, or what replaces it.
+     */
+    private Qryop rewrite(Qryop op, boolean root) throws IOException {
+
+        for (int i = 0; i < op.args.size(); i++)
+            op.args.set(i, rewrite(op.args.get(i), false));
+
+        flatten(op);
+        foldTerms(op, root);
+        dropZeroWeights(op);
+        if (this.booleanModel &&
+            (op instanceof QryopSlAnd || op instanceof QryopSlOr || op instanceof QryopSlWAnd))
+            orderByDf(op);
+
+        if (op.args.size() == 1 && isIdentity(op, root)) {
+            this.rewrites.add("replaced " + op + " with its argument");
+            return op.args.get(0);
+        }
+        return op;
+    }
+
+    /**
+     *  Merge the arguments of nested operators of the same kind into
+     *  their parent's.
+     */
+    private void flatten(Qryop op) {
+
+        boolean sum = (op instanceof QryopSlSum);
+        if (! sum && ! (this.booleanModel &&
+                        (op instanceof QryopSlAnd || op instanceof QryopSlOr)))
+            return;
+
+        for (int i = 0; i < op.args.size(); i++) {
+            Qryop arg = op.args.get(i);
+            if (arg.getClass() != op.getClass())
+                continue;
+
+            if (sum) {
+                QryopSlSum parent = (QryopSlSum) op;
+                QryopSlSum child = (QryopSlSum) arg;
+                int times = parent.qtf.get(i);
+                parent.remove(i);
+                for (int j = 0; j < child.args.size(); j++) {
+                    parent.args.add(i + j, child.args.get(j));
+                    parent.qtf.add(i + j, times * child.qtf.get(j));
+                }
+            } else {
+                op.args.remove(i);
+                op.args.addAll(i, arg.args);
+            }
+            this.rewrites.add("flattened " + arg + " into its parent");
+            i += arg.args.size() - 1;
+        }
+    }
+
+    /**
+     *  Merge the repeated terms of an operator into their first
+     *  occurrence.
+     */
+    private void foldTerms(Qryop op, boolean root) {
+
+        boolean indri = (this.model instanceof RetrievalModelIndri);
+        if (! (op instanceof QryopSlSum || op instanceof QryopSlWAnd ||
+               (op instanceof QryopSlWSum && (root || ! indri)) ||
+               (this.booleanModel && (op instanceof QryopSlAnd || op instanceof QryopSlOr))))
+            return;
+
+        Map<String, Integer> first = new HashMap<String, Integer>();
+
+        for (int i = 0; i < op.args.size(); i++) {
+            if (! (op.args.get(i) instanceof QryopIlTerm))
+                continue;
+
+            String term = op.args.get(i).toString();
+            Integer k = first.get(term);
+            if (k == null) {
+                first.put(term, i);
+                continue;
+            }
+
+            if (op instanceof QryopSlSum) {
+                QryopSlSum sum = (QryopSlSum) op;
+                sum.qtf.set(k, sum.qtf.get(k) + sum.qtf.get(i));
+                sum.remove(i);
+                this.rewrites.add("folded repeated term " + term + " into qtf " + sum.qtf.get(k));
+            } else if (op instanceof QryopSlWAnd) {
+                ArrayList<Float> weight = ((QryopSlWAnd) op).weight;
+                weight.set(k, weight.get(k) + weight.get(i));
+                weight.remove(i);
+                op.args.remove(i);
+                this.rewrites.add("folded repeated term " + term + " into weight " + weight.get(k));
+            } else if (op instanceof QryopSlWSum) {
+                ArrayList<Double> weight = ((QryopSlWSum) op).weight;
+                weight.set(k, weight.get(k) + weight.get(i));
+                weight.remove(i);
+                op.args.remove(i);
+                this.rewrites.add("folded repeated term " + term + " into weight " + weight.get(k));
+            } else {
+                op.args.remove(i);
+                this.rewrites.add("dropped repeated term " + term);
+            }
+            i--;
+        }
+    }
+
+    /**
+     *  Drop the arguments of an Indri #WAND, or of a #WSUM of another
+     *  model, whose weight is 0 and that match no documents, unless all
+     *  of the weights are 0.
+     */
+    private void dropZeroWeights(Qryop op) throws IOException {
+
+        boolean indri = (this.model instanceof RetrievalModelIndri);
+        List<? extends Number> weight;
+        if (op instanceof QryopSlWAnd && indri)
+            weight = ((QryopSlWAnd) op).weight;
+        else if (op instanceof QryopSlWSum && ! indri)
+            weight = ((QryopSlWSum) op).weight;
+        else
+            return;
+
+        boolean anyNonZero = false;
+        for (Number w : weight)
+            anyNonZero |= (w.doubleValue() != 0.0);
+        if (! anyNonZero)
+            return;
+
+        for (int i = op.args.size() - 1; i >= 0; i--) {
+            if (weight.get(i).doubleValue() == 0.0 && estimateDf(op.args.get(i)) == 0) {
+                this.rewrites.add("dropped " + op.args.get(i) + ", whose weight is 0 and which matches nothing");
+                weight.remove(i);
+                op.args.remove(i);
+            }
+        }
+    }
+
+    /**
+     *  Sort the arguments of an operator by estimated df, stably.  A
+     *  #WAND's weights move with its arguments.
+     */
+    private void orderByDf(Qryop op) throws IOException {
+
+        int n = op.args.size();
+        final long[] df = new long[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            df[i] = estimateDf(op.args.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (df[a] < df[b]) ? -1 : ((df[a] == df[b]) ? 0 : 1);
+            }
+        });
+
+        boolean sorted = true;
+        for (int i = 0; i < n; i++)
+            sorted &= (order[i] == i);
+        if (sorted)
+            return;
+
+        ArrayList<Qryop> args = new ArrayList<Qryop>();
+        String description = "";
+        for (int i = 0; i < n; i++) {
+            args.add(op.args.get(order[i]));
+            description += " " + op.args.get(order[i]) + " (" + df[order[i]] + ")";
+        }
+        if (op instanceof QryopSlWAnd) {
+            ArrayList<Float> weight = new ArrayList<Float>();
+            for (int i = 0; i < n; i++)
+                weight.add(((QryopSlWAnd) op).weight.get(order[i]));
+            ((QryopSlWAnd) op).weight = weight;
+        }
+        op.args = args;
+        this.rewrites.add("ordered arguments by df:" + description);
+    }
+
+    /**
+     *  Estimate the number of documents that an operator matches, from
+     *  the df of its terms.  The estimate is never too small, so an
+     *  operator whose estimate is 0 matches nothing.
+     *  @param q The operator.
+     *  @return The estimate.
+     *  @throws IOException
+     */
+    long estimateDf(Qryop q) throws IOException {
+
+        if (q instanceof QryopIlTerm)
+            return QryEval.STATS.df(((QryopIlTerm) q).field, ((QryopIlTerm) q).term);
+
+        if (q instanceof QryopIlPhrase) {
+            QryopIlPhrase p = (QryopIlPhrase) q;
+            return Math.min(QryEval.STATS.df(p.field, p.first),
+                            QryEval.STATS.df(p.field, p.second));
+        }
+
+        if (q instanceof QryopSlScore)
+            return estimateDf(q.args.get(0));
+
+        //  Operators that need all of their arguments match at most as
+        //  many documents as the rarest; the others match at most the
+        //  documents of all of them.
+
+        boolean all = (q instanceof QryopIlPositional ||
+                       (this.booleanModel && (q instanceof QryopSlAnd || q instanceof QryopSlWAnd)));
+        long numDocs = QryEval.STATS.numDocs();
+        long df = all ? numDocs : 0;
+        for (Qryop arg : q.args) {
+            long argDf = estimateDf(arg);
+            df = all ? Math.min(df, argDf) : Math.min(numDocs, df + argDf);
+        }
+        return df;
+    }
+
+    /**
+     *  @return True if a one-argument operator gives every document the
+     *  score that its argument gives it.
+     */
+    private boolean isIdentity(Qryop op, boolean root) {
+
+        boolean identity =
+            (op instanceof QryopSlSum && ((QryopSlSum) op).qtf.get(0) == 1) ||
+            (this.booleanModel && (op instanceof QryopSlAnd || op instanceof QryopSlOr)) ||
+            (root && op instanceof QryopSlAnd && this.model instanceof RetrievalModelIndri);
+
+        if (root)
+            return identity && (op.args.get(0) instanceof QryopSl);
+        return identity && ! (this.model instanceof RetrievalModelIndri);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ *  QrySharing hash-conses a query tree: operators that have the same
+ *  signature (see Qryop.signature) are replaced by one operator, which
+ *  is evaluated once and whose result each of its users reads (see
+ *  Qryop.evaluateShared).  For example, in the feedback query
+ *
+ *    #WAND(w1 #AND(a b) w2 #WAND(v1 a v2 b v3 c))
+ *
+ *  the inverted lists of a and b are read from the index once instead
+ *  of twice, and a repeated #NEAR subtree is matched once.
+ *
+ *  A signature includes whether a term's list has positions, so a term
+ *  that a #NEAR reads and the same term that is only scored are not
+ *  shared.  The #SCORE operators that wrap inverted lists are created
+ *  during evaluation, one for each user, so only the list is shared.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+public class QrySharing {
+
+    private Map<String, Qryop> canonical = new HashMap<String, Qryop>();
+    private List<Qryop> shared = new ArrayList<Qryop>();
+
+    /**
+     *  Share the repeated subtrees of a query.  The query's top
+     *  operator is used once, so it is never shared.  This must be done
+     *  after setNeedsPositions, and before the query is evaluated.
+     *  @param root The query.
+     *  @return The operators that are used more than once, in the order
+     *  their first repetition was found.
+     */
+    public static List<Qryop> share(Qryop root) {
+        QrySharing sharing = new QrySharing();
+        sharing.shareArgs(root);
+        return sharing.shared;
+    }
+
+    /**
+     *  Replace each argument of an operator, after its own arguments,
+     *  with the first operator seen that has the same signature.
+     */
+    private void shareArgs(Qryop op) {
+
+        for (int i = 0; i < op.args.size(); i++) {
+            Qryop arg = op.args.get(i);
+            String signature = arg.signature();
+            Qryop first = this.canonical.get(signature);
+
+            if (first == null) {
+                shareArgs(arg);
+                this.canonical.put(signature, arg);
+            } else {
+                op.args.set(i, first);
+                if (first.uses++ == 1)
+                    this.shared.add(first);
+            }
+        }
+    }
+}
@@ -29,6 +29,15 @@ public abstract class Qryop {
     protected ArrayList<Qryop> args = new ArrayList<Qryop>();
     protected List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
 
+    //  An operator that appears more than once in a query (see
+    //  QrySharing) is evaluated once, and its result is given to each
+    //  of the operators that use it.
+
+    protected int uses = 1;			// how many operators use this one
+    private QryResult sharedResult = null;
+    private RetrievalModel sharedModel = null;	// the model sharedResult is for
+    private int sharedReads = 0;		// how many users have it
+
     /**
      *  Appends an argument to the list of query operator arguments.  This
      *  simplifies the design of some query parsing architectures.
@@ -56,6 +65,32 @@ public abstract class Qryop {
      */
     public abstract QryResult evaluate(RetrievalModel r) throws IOException;
 
+    /**
+     *  Evaluate the operator for one of the operators that use it.  If
+     *  it has more than one user, it is evaluated by the first, and
+     *  the others get the same result, which they must not change.  The
+     *  result is released when the last user has it.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The result of evaluating the query.
+     *  @throws IOException
+     */
+    public QryResult evaluateShared(RetrievalModel r) throws IOException {
+
+        if (this.uses <= 1)
+            return evaluate(r);
+
+        if (this.sharedResult == null || this.sharedModel != r) {
+            this.sharedResult = evaluate(r);
+            this.sharedModel = r;
+            this.sharedReads = 0;
+        }
+
+        QryResult result = this.sharedResult;
+        if (++this.sharedReads >= this.uses)
+            this.sharedResult = null;
+        return result;
+    }
+
     /**
      *  Free this operator's DaaT pointers.
      *  @return void
@@ -74,6 +109,40 @@ public abstract class Qryop {
         this.args.remove(i);
     };
 
+    /**
+     *  Tell the operator whether its result must include term positions.
+     *  Most operators only use the tf of their arguments, so by default
+     *  their arguments are told that positions are not needed.
+     *  Positional operators override this.
+     *  @param needed True if the parent operator reads positions.
+     *  @return void
+     */
+    public void setNeedsPositions(boolean needed) {
+        for (int i=0; i<this.args.size(); i++)
+            this.args.get(i).setNeedsPositions(false);
+    }
+
+    /**
+     *  Return a canonical string for the operator and its arguments.
+     *  Two operators with the same signature produce the same result,
+     *  so it includes anything besides the arguments that the result
+     *  depends on.  Operators with such parameters override this.
+     *  @return The signature.
+     */
+    public String signature() {
+        return getClass().getSimpleName() + argSignatures();
+    }
+
+    /**
+     *  @return The signatures of the arguments, in order, in parentheses.
+     */
+    protected String argSignatures() {
+        String result = "(";
+        for (int i=0; i<this.args.size(); i++)
+            result += " " + this.args.get(i).signature();
+        return result + " )";
+    }
+
     /*
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
@@ -25,7 +25,7 @@ public abstract class QryopIl extends Qryop {
 
         for (int i=0; i<this.args.size(); i++) {
             DaaTPtr ptri = new DaaTPtr ();
-            ptri.invList = this.args.get(i).evaluate(r).invertedList;
+            ptri.invList = this.args.get(i).evaluateShared(r).invertedList;
             ptri.scoreList = null;
             ptri.nextDoc = 0;
 
@@ -33,4 +33,15 @@ public abstract class QryopIl extends Qryop {
         }
     }
 
+    /**
+     *  An inverted list operator such as #SYN produces positions only
+     *  if its arguments do, so the requirement is passed down unchanged.
+     *  @param needed True if the parent operator reads positions.
+     *  @return void
+     */
+    public void setNeedsPositions(boolean needed) {
+        for (int i=0; i<this.args.size(); i++)
+            this.args.get(i).setNeedsPositions(needed);
+    }
+
 }
@@ -0,0 +1,89 @@
+/**
+ *  This class implements a #NEAR/1 of two terms whose inverted list is
+ *  stored in the PhraseIndex.  The parser creates it in place of a
+ *  QryopIlNear (see PhraseIndex.rewrite).  It reads the stored list,
+ *  and evaluates the #NEAR/1 that it replaced if the list is not
+ *  there.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class QryopIlPhrase extends QryopIl {
+
+    public String first;
+    public String second;
+    public String field;
+    public boolean needsPositions = true;
+    private QryopIlNear near;	// the operator this one replaces
+
+    /**
+     *  Constructor.
+     *  @param near The #NEAR/1 operator that this operator replaces.
+     *  @param first The first term.
+     *  @param second The second term.
+     *  @param field The field that both terms match.
+     *  @return @link{QryopIlPhrase} A PHRASE query operator.
+     */
+    public QryopIlPhrase(QryopIlNear near, String first, String second, String field) {
+        this.near = near;
+        this.first = first;
+        this.second = second;
+        this.field = field;
+    }
+
+    /*
+     *  The terms of a phrase are fixed when it is created, so add does
+     *  nothing.
+     *  @param {q} q The query argument (query operator) to append.
+     *  @return void
+     */
+    public void add (Qryop q) {
+    }
+
+    /**
+     *  Remember whether the inverted list must include positions.
+     *  @param needed True if the parent operator reads positions.
+     *  @return void
+     */
+    public void setNeedsPositions(boolean needed) {
+        this.needsPositions = needed;
+        this.near.setNeedsPositions(needed);
+    }
+
+    /**
+     *  Evaluates the query operator and returns the result.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The result of evaluating the query.
+     *  @throws IOException
+     */
+    public QryResult evaluate(RetrievalModel r) throws IOException {
+
+        InvList list = (QryEval.phraseIndex == null) ? null :
+            QryEval.phraseIndex.getInvList(this.first, this.second, this.field,
+                                           this.needsPositions);
+        if (list == null)
+            return this.near.evaluate(r);
+
+        QryResult result = new QryResult();
+        result.invertedList = list;
+        return result;
+    }
+
+    /**
+     *  @return The signature of this query operator.
+     */
+    public String signature() {
+        return "QryopIlPhrase( " + this.first + " " + this.second + "." + this.field +
+            (this.needsPositions ? "+positions" : "") + " )";
+    }
+
+    /*
+     *  Return a string version of this query operator.
+     *  @return The string version of this query operator.
+     */
+    public String toString() {
+        return this.near.toString();
+    }
+}
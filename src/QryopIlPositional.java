@@ -0,0 +1,284 @@
+/**
+ *  The positional operators (#NEAR/n and #WINDOW/n) are subclasses of
+ *  the QryopIlPositional class.  A positional operator matches in the
+ *  documents that all of its arguments contain, at the positions where
+ *  its arguments occur close enough together; each subclass decides
+ *  what close enough means in matchPositions.
+ *
+ *  A positional operator can be evaluated in two phases (see cursor).
+ *  The documents that all of the arguments contain are an
+ *  approximation of the documents that the operator matches, and they
+ *  are found without reading any positions.  The positions of a
+ *  document are read and matched only when the document is confirmed,
+ *  which an enclosing conjunction does only after its cheaper
+ *  arguments have matched.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public abstract class QryopIlPositional extends QryopIl {
+    int adjacency;//near/n, window/n
+
+    /**
+     *  Appends an argument to the list of query operator arguments.  This
+     *  simplifies the design of some query parsing architectures.
+     *  @param {q} q The query argument (query operator) to append.
+     *  @return void
+     *  @throws IOException
+     */
+    public void add (Qryop a) {
+        this.args.add(a);
+    }
+
+    /**
+     *  This operator matches term positions, so its arguments must
+     *  always provide them.
+     *  @param needed True if the parent operator reads positions.
+     *  @return void
+     */
+    public void setNeedsPositions(boolean needed) {
+        for (int i=0; i<this.args.size(); i++)
+            this.args.get(i).setNeedsPositions(true);
+    }
+
+    /**
+     *  Match the positions of the arguments in one document.  The
+     *  result positions are written to match, which has room for at
+     *  least as many positions as any argument has.
+     *  @param positions The positions of each argument, in order.
+     *  @param tfs The number of positions of each argument.
+     *  @param match The array to write the result positions to.
+     *  @return The number of result positions.
+     */
+    protected abstract int matchPositions (int[][] positions, int[] tfs, int[] match);
+
+    /**
+     *  Evaluates the query operator, including any child operators and
+     *  returns the result.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The result of evaluating the query.
+     *  @throws IOException
+     */
+    public QryResult evaluate(RetrievalModel r) throws IOException {
+        return (evaluateBoolean (r));
+    }
+
+    /**
+     *  Evaluates the query operator for boolean retrieval models,
+     *  including any child operators and returns the result.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The result of evaluating the query.
+     *  @throws IOException
+     */
+    public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
+        // Initialization
+		allocDaaTPtrs (r);
+		QryResult result = new QryResult();
+		int num_of_lists = this.daatPtrs.size();
+		if (num_of_lists == 0) {
+			return result;
+		}
+		InvList lists[] = new InvList[num_of_lists];
+		for (int i = 0; i < num_of_lists; ++i) {
+			lists[i] = this.daatPtrs.get(i).invList;
+		}
+		result.invertedList.field = lists[0].field;
+
+		//positions are only examined in the documents that all of the
+		//lists contain.  The buffers are reused for every document.
+		Intersection docs = new Intersection(lists);
+		int positions[][] = new int[num_of_lists][];
+		int tfs[] = new int[num_of_lists];
+		int match_positions[] = new int[16];
+
+		for (int m = 0; m < docs.size(); ++m) {
+			for (int j = 0; j < num_of_lists; ++j) {
+				positions[j] = lists[j].getPositions(docs.getIndex(j, m), positions[j]);
+				tfs[j] = lists[j].getTf(docs.getIndex(j, m));
+			}
+			if (match_positions.length < tfs[0]) {
+				match_positions = new int[tfs[0]];
+			}
+			int matches = matchPositions(positions, tfs, match_positions);
+			if (matches > 0) {
+				result.invertedList.appendPosting(docs.getDocid(m), match_positions, matches);
+			}
+		}
+		freeDaaTPtrs();
+		return result;
+    }
+
+    /**
+     *  Evaluate the arguments, and return a two-phase cursor over the
+     *  postings of the operator.  nextDoc and advance stop at every
+     *  document that all of the arguments contain; matches() reads and
+     *  matches the positions of the current document, and must be
+     *  called before freq or nextPosition.  Since the cursor does not
+     *  know the operator's df or ctf, it is for retrieval models that
+     *  do not need them.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The cursor.
+     *  @throws IOException
+     */
+    public Cursor cursor(RetrievalModel r) throws IOException {
+
+        int n = this.args.size();
+        Cursor c = new Cursor();
+        c.args = new PostingCursor[n];
+        c.positions = new int[n][16];
+        c.tfs = new int[n];
+        c.match = new int[16];
+
+        InvList lists[] = new InvList[n];
+        for (int i = 0; i < n; i++) {
+            lists[i] = this.args.get(i).evaluateShared(r).invertedList;
+            c.args[i] = (lists[i].df > 0) ? lists[i].cursor() : new InvList().cursor();
+        }
+
+        //  The cursors are advanced shortest list first.  Reading
+        //  positions costs about the average tf of each list.
+
+        c.byCost = new int[n];
+        c.cost = (n > 0) ? Integer.MAX_VALUE : 0;
+        for (int i = 0; i < n; i++) {
+            int j = i;
+            while (j > 0 && lists[c.byCost[j - 1]].df > lists[i].df) {
+                c.byCost[j] = c.byCost[j - 1];
+                j--;
+            }
+            c.byCost[j] = i;
+            c.cost = Math.min(c.cost, lists[i].df);
+            if (lists[i].df > 0)
+                c.matchCost += (float) lists[i].ctf / lists[i].df;
+        }
+        return c;
+    }
+
+    /**
+     *  A two-phase cursor over the postings of a positional operator.
+     */
+    public class Cursor extends PostingCursor {
+
+        private PostingCursor[] args;	// the arguments, in argument order
+        private int[] byCost;		// argument indexes, shortest list first
+        private long cost;		// the length of the shortest list
+        private float matchCost;	// the sum of the arguments' average tfs
+
+        private int doc = -1;
+        private int matchedDoc = -1;	// the document match was computed for
+        private int[][] positions;
+        private int[] tfs;
+        private int[] match;
+        private int freq = 0;
+        private int read = 0;
+
+        public int docID() {
+            return this.doc;
+        }
+
+        public int nextDoc() throws IOException {
+            if (this.doc == NO_MORE_DOCS)
+                return NO_MORE_DOCS;
+            return advance(this.doc + 1);
+        }
+
+        public int advance(int target) throws IOException {
+
+            if (this.args.length == 0)
+                return (this.doc = NO_MORE_DOCS);
+
+            PostingCursor lead = this.args[this.byCost[0]];
+            int candidate = (lead.docID() < target) ? lead.advance(target) : lead.docID();
+
+            NEXT_CANDIDATE:
+            while (candidate != NO_MORE_DOCS) {
+                for (int i = 1; i < this.byCost.length; i++) {
+                    PostingCursor other = this.args[this.byCost[i]];
+                    int d = (other.docID() < candidate) ? other.advance(candidate) : other.docID();
+                    if (d > candidate) {
+                        candidate = lead.advance(d);
+                        continue NEXT_CANDIDATE;
+                    }
+                }
+                break;
+            }
+            return (this.doc = candidate);
+        }
+
+        /**
+         *  Read the positions of the arguments in the current document,
+         *  and match them.  The result is kept until the cursor moves.
+         *  @return True if the operator matches the current document.
+         *  @throws IOException
+         */
+        public boolean matches() throws IOException {
+
+            if (this.matchedDoc != this.doc) {
+                int minTf = Integer.MAX_VALUE;
+                for (int i = 0; i < this.args.length; i++) {
+                    int tf = this.args[i].freq();
+                    if (this.positions[i].length < tf)
+                        this.positions[i] = new int[Math.max(tf, 2 * this.positions[i].length)];
+                    for (int j = 0; j < tf; j++)
+                        this.positions[i][j] = this.args[i].nextPosition();
+                    this.tfs[i] = tf;
+                    minTf = Math.min(minTf, tf);
+                }
+                if (this.match.length < minTf)
+                    this.match = new int[Math.max(minTf, 2 * this.match.length)];
+
+                this.freq = matchPositions(this.positions, this.tfs, this.match);
+                this.read = 0;
+                this.matchedDoc = this.doc;
+            }
+            return (this.freq > 0);
+        }
+
+        public float matchCost() {
+            return this.matchCost;
+        }
+
+        /**
+         *  @return The length of the shortest argument list, the most
+         *  documents the cursor can stop at.
+         */
+        public long cost() {
+            return this.cost;
+        }
+
+        public int freq() throws IOException {
+            matches();
+            return this.freq;
+        }
+
+        public int nextPosition() throws IOException {
+            matches();
+            return this.match[this.read++];
+        }
+    }
+
+    /**
+     *  @return The signature of this query operator, which includes n.
+     */
+    public String signature() {
+        return getClass().getSimpleName() + "/" + this.adjacency + argSignatures();
+    }
+
+    /*
+     *  Calculate the default score for the specified document if it
+     *  does not match the query operator.  This score is 0 for many
+     *  retrieval models, but not all retrieval models.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @param docid The internal id of the document that needs a default score.
+     *  @return The default score.
+     */
+    public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+        if (r instanceof RetrievalModelUnrankedBoolean)
+            return (0.0);
+
+        return 0.0;
+    }
+}
@@ -50,46 +50,86 @@ public class QryopIlSyn extends QryopIl {
     QryResult result = new QryResult ();
     result.invertedList.field = new String (this.daatPtrs.get(0).invList.field);
 
-    //  Each pass of the loop adds 1 document to result until all of
-    //  the inverted lists are depleted.  When a list is depleted, it
-    //  is removed from daatPtrs, so this loop runs until daatPtrs is empty.
+    //  The arguments' cursors are kept in a heap, by their next
+    //  docid.  Each pass of the loop takes the postings of the
+    //  smallest docid off the heap and adds 1 document to result,
+    //  until all of the cursors are exhausted.
+
+    int num_of_lists = this.daatPtrs.size();
+    PostingCursor cursors[] = new PostingCursor[num_of_lists];
+    DocidHeap heap = new DocidHeap (num_of_lists);
+
+    for (int i=0; i<num_of_lists; i++) {
+      cursors[i] = this.daatPtrs.get(i).invList.cursor();
+      int docid = cursors[i].nextDoc();
+      if (docid != PostingCursor.NO_MORE_DOCS)
+	heap.add (i, docid);
+    }
 
-    //  This implementation is intended to be clear.  A more efficient
-    //  implementation would combine loops and use merge-sort.
+    int[] positions = new int[16];
+    int[] merged = new int[16];
 
-    while (this.daatPtrs.size() > 0) {
+    //  If any argument was read without positions, the result has
+    //  no positions either; only the tfs are combined.
 
-      int nextDocid = getSmallestCurrentDocid ();
+    boolean withPositions = true;
 
-      //  Create a new posting that is the union of the posting lists
-      //  that match the nextDocid.
+    for (int i=0; i<num_of_lists; i++)
+      if (! this.daatPtrs.get(i).invList.hasPositions)
+	withPositions = false;
 
-      List<Integer> positions = new ArrayList<Integer>();
+    while (heap.size() > 0) {
 
-      for (int i=0; i<this.daatPtrs.size(); i++) {
-	DaaTPtr ptri = this.daatPtrs.get(i);
-	if (ptri.invList.postings.size() != 0) {
-	if (ptri.invList.getDocid (ptri.nextDoc) == nextDocid) {
-	  positions.addAll (ptri.invList.postings.get(ptri.nextDoc).positions);
-	  ptri.nextDoc ++;
-	}
-	}
-      }
+      int nextDocid = heap.topDocid();
+
+      //  Create a new posting that is the union of the postings that
+      //  match nextDocid.  Each argument's positions are sorted, so
+      //  they are merged into the positions gathered so far.
 
-      Collections.sort (positions);
-      result.invertedList.appendPosting (nextDocid, positions);
+      int tf = 0;
 
-      //  If a DaatPtr has reached the end of its list, remove it.
-      //  The loop is backwards so that removing an arg does not
-      //  interfere with iteration.
+      do {
+	PostingCursor c = cursors[heap.topArg()];
+	int argTf = c.freq();
 
-      for (int i=this.daatPtrs.size()-1; i>=0; i--) {
-	DaaTPtr ptri = this.daatPtrs.get(i);
+	if (withPositions) {
+	  if (tf + argTf > merged.length) {
+	    merged = Arrays.copyOf (merged, 2 * (tf + argTf));
+	    positions = Arrays.copyOf (positions, merged.length);
+	  }
 
-	if (ptri.nextDoc >= ptri.invList.postings.size()) {
-	  this.daatPtrs.remove (i);
+	  int i = 0;
+	  int n = 0;
+	  int pos = (argTf > 0) ? c.nextPosition() : 0;
+	  for (int j=0; j<argTf; ) {
+	    if (i < tf && positions[i] <= pos)
+	      merged[n++] = positions[i++];
+	    else {
+	      merged[n++] = pos;
+	      if (++j < argTf)
+		pos = c.nextPosition();
+	    }
+	  }
+	  while (i < tf)
+	    merged[n++] = positions[i++];
+
+	  int[] t = positions;
+	  positions = merged;
+	  merged = t;
 	}
-      }
+	tf += argTf;
+
+	int docid = c.nextDoc();
+	if (docid != PostingCursor.NO_MORE_DOCS)
+	  heap.updateTop (docid);
+	else
+	  heap.pop ();
+      } while (heap.size() > 0 && heap.topDocid() == nextDocid);
+
+      if (withPositions)
+	result.invertedList.appendPosting (nextDocid, positions, tf);
+      else
+	result.invertedList.appendPosting (nextDocid, tf);
     }
 
     freeDaaTPtrs();
@@ -97,24 +137,6 @@ public class QryopIlSyn extends QryopIl {
     return result;
   }
 
-  /**
-   *  Return the smallest unexamined docid from the DaaTPtrs.
-   *  @return The smallest internal document id.
-   */
-  public int getSmallestCurrentDocid () {
-
-    int nextDocid = Integer.MAX_VALUE;
-    for (int i=0; i<this.daatPtrs.size(); i++) {
-      DaaTPtr ptri = this.daatPtrs.get(i);
-      if (ptri.invList.postings.size() != 0) {//haileiy
-      if (ptri.invList.df > 0 && nextDocid > ptri.invList.getDocid (ptri.nextDoc))
-    	  nextDocid = ptri.invList.getDocid (ptri.nextDoc);
-      }
-    }
-
-    return (nextDocid);
-  }
-
   /**
    *  syntaxCheckArgResults does syntax checking that can only be done
    *  after query arguments are evaluated.
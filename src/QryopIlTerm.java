@@ -14,6 +14,7 @@ public class QryopIlTerm extends QryopIl {
 
     public String term;
     public String field;
+    public boolean needsPositions = true;
 
     /**
      *  Constructor.  The term is assumed to match the body field.
@@ -47,17 +48,67 @@ public class QryopIlTerm extends QryopIl {
     }
 
     /**
-     *  Evaluates the query operator and returns the result.
+     *  Remember whether the inverted list must include positions.  If
+     *  it need not, only docids and tfs are read from the index.
+     *  @param needed True if the parent operator reads positions.
+     *  @return void
+     */
+    public void setNeedsPositions(boolean needed) {
+        this.needsPositions = needed;
+    }
+
+    /**
+     *  Evaluates the query operator and returns the result.  If lazy
+     *  postings are enabled (postings:lazy=true), the inverted list is
+     *  not copied out of the index; operators read it through its cursor.
+     *  If a compiled index is open, the list is read from it instead of
+     *  from Lucene.  Otherwise, if the posting cache is enabled and postings
+     *  are not lazy, the list is fetched through it.  Positions are read only if an operator
+     *  needs them.
      *  @param r A retrieval model that controls how the operator behaves.
      *  @return The result of evaluating the query.
      *  @throws IOException
      */
     public QryResult evaluate(RetrievalModel r) throws IOException {
         QryResult result = new QryResult();
-        result.invertedList = new InvList(this.term, this.field);
+        if (QryEval.compiledIndex != null)
+            result.invertedList =
+                QryEval.compiledIndex.getInvList(this.term, this.field, QryEval.postings_lazy,
+                                                 this.needsPositions);
+        else if (QryEval.postingCache != null && ! QryEval.postings_lazy)
+            result.invertedList =
+                QryEval.postingCache.get(this.term, this.field, this.needsPositions);
+        else
+            result.invertedList = new InvList(this.term, this.field, QryEval.postings_lazy,
+                                              this.needsPositions);
         return result;
     }
 
+    /**
+     *  Open the inverted list of the term without copying its postings
+     *  into memory, whatever postings:lazy says.  MaxScore and Block-Max
+     *  WAND read a term's list once, through its cursor, and skip most
+     *  of it; a copied list would have decoded the postings they skip.
+     *  The lazy list is not shared with the term's other users.
+     *  @return The lazy inverted list.
+     *  @throws IOException
+     */
+    public InvList openLazy() throws IOException {
+        if (QryEval.compiledIndex != null)
+            return QryEval.compiledIndex.getInvList(this.term, this.field, true,
+                                                    this.needsPositions);
+        return new InvList(this.term, this.field, true, this.needsPositions);
+    }
+
+    /**
+     *  The list of a term is the same wherever it occurs, but it has
+     *  positions only if they were asked for.
+     *  @return The signature of this query operator.
+     */
+    public String signature() {
+        return this.term + "." + this.field + (this.needsPositions ? "+positions" : "");
+    }
+
     /*
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
@@ -6,10 +6,13 @@
 
 import java.io.*;
 
-//import Qryop.DaaTPtr;
+public class QryopIlWindow extends QryopIlPositional {
+
+    //  Reusable buffers: the current position of each argument, and a
+    //  heap of the arguments keyed by their current positions.
+    private int curr_pos[] = new int[0];
+    private DocidHeap heap = new DocidHeap(0);
 
-public class QryopIlWindow extends QryopIl {
-    int adjacency;//window/n
     /**
      *  It is convenient for the constructor to accept a variable number
      *  of arguments. Thus new qryopAnd (arg1, arg2, arg3, ...).
@@ -22,128 +25,68 @@ public class QryopIlWindow extends QryopIl {
     }
 
     /**
-     *  Appends an argument to the list of query operator arguments.  This
-     *  simplifies the design of some query parsing architectures.
-     *  @param {q} q The query argument (query operator) to append.
-     *  @return void
-     *  @throws IOException
+     *  Match the positions of the arguments in one document, in any
+     *  order.  The smallest current position moves forward until the
+     *  current positions fit in a window of n; then the smallest is a
+     *  match, and every argument moves past its current position.
+     *
+     *  The arguments' current positions are kept in a heap, so the
+     *  smallest is found in O(log n).  Positions only move forward, so
+     *  the largest is tracked as they move.
+     *  @param positions The positions of each argument, in order.
+     *  @param tfs The number of positions of each argument.
+     *  @param match The array to write the result positions to.
+     *  @return The number of result positions.
      */
-    public void add (Qryop a) {
-        this.args.add(a);
-    }
+    protected int matchPositions (int[][] positions, int[] tfs, int[] match) {
+		int num_of_lists = tfs.length;
+		if (this.curr_pos.length < num_of_lists) {
+			this.curr_pos = new int[num_of_lists];
+			this.heap = new DocidHeap(num_of_lists);
+		}
+		int curr_pos[] = this.curr_pos;
+		DocidHeap heap = this.heap;
+		for (int j = 0; j < num_of_lists; ++j) {
+			curr_pos[j] = 0;
+		}
+		int matches = 0;
 
-    /**
-     *  Evaluates the query operator, including any child operators and
-     *  returns the result.
-     *  @param r A retrieval model that controls how the operator behaves.
-     *  @return The result of evaluating the query.
-     *  @throws IOException
-     */
-    public QryResult evaluate(RetrievalModel r) throws IOException {
-        return (evaluateBoolean (r));
-    }
-
-    /**
-     *  Evaluates the query operator for boolean retrieval models,
-     *  including any child operators and returns the result.
-     *  @param r A retrieval model that controls how the operator behaves.
-     *  @return The result of evaluating the query.
-     *  @throws IOException
-     */
-    public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
-        // Initialization
-		allocDaaTPtrs (r);
-		QryResult result = new QryResult();
-		int num_of_lists = this.daatPtrs.size();
-		DaaTPtr ptr[] = new DaaTPtr[num_of_lists];
-		for (int i = 0; i < num_of_lists; ++i) {
-            ptr[i] = this.daatPtrs.get(i);
-            ptr[i].nextDoc = 0;
-        }
-		
-		EVALUATE2:
-			for (; ptr[0].nextDoc < ptr[0].invList.df; ++ptr[0].nextDoc) {
-				int docid0 = ptr[0].invList.getDocid(ptr[0].nextDoc);
-				//System.out.println("docid 0 is " + docid0);
-				//find matching documents
-				for (int j = 1; j < num_of_lists; ++j) {
-					
-					while (ptr[j].nextDoc < ptr[j].invList.df && ptr[j].invList.getDocid(ptr[j].nextDoc) < docid0) {
-						ptr[j].nextDoc++;
-					}
-					if (ptr[j].nextDoc == ptr[j].invList.df) continue EVALUATE2;
-					if (ptr[j].invList.getDocid(ptr[j].nextDoc) != docid0) {
-						continue EVALUATE2;
-					}
+		EVALUATE3:
+		while (true) {
+			//(re)start with the current position of every argument
+			heap.clear();
+			int temp_max = -1;
+			for (int j = 0; j < num_of_lists; ++j) {
+				if (curr_pos[j] == tfs[j]) {
+					//reached the end
+					break EVALUATE3;
 				}
-				//sanity check
-				for (int j = 1; j < num_of_lists; ++j) {
-					if (ptr[j].invList.getDocid(ptr[j].nextDoc) != docid0) {
-						//System.out.println("docid mismatch in QryopIlWindow");
-						continue EVALUATE2;
-					}
+				int curr = positions[j][curr_pos[j]];
+				heap.add(j, curr);
+				if (curr > temp_max) {
+					temp_max = curr;
 				}
-				
-				//now, the nextDoc pointers point to the same docid
-				//we need to iterate through the position vector now.
-				
-				InvList.DocPosting to_append_posting = new InvList.DocPosting(docid0);
-				int curr_pos[] = new int[num_of_lists];
-				int flag = 0;
-				EVALUATE3:
-				while (true) {
-					int temp_max = -1;
-					int temp_min = Integer.MAX_VALUE / 2;
-					int temp_min_pos = 0;
-					for (int j = 0; j < num_of_lists; ++j) {
-						if (curr_pos[j] == ptr[j].invList.postings.get(ptr[j].nextDoc).positions.size()) {
-							//reached the end
-							break EVALUATE3;
-						}
-						//update the max and min
-						int curr = ptr[j].invList.postings.get(ptr[j].nextDoc).positions.get(curr_pos[j]);
-						if (curr > temp_max) {
-							temp_max = curr;
-						}
-						if (curr < temp_min) {
-							temp_min = curr;
-							temp_min_pos = j;
-						}
-					}
-					if (temp_max + 1 - temp_min > this.adjacency) {
-						curr_pos[temp_min_pos]++;
-						continue EVALUATE3;
-					}
-					//match
-					//advance all these pointers and store the position into result.
-					
-					to_append_posting.positions.add(temp_min);
-					flag = 1;
-					for (int j = 0; j < num_of_lists; ++j) {
-						curr_pos[j]++;
-					}
+			}
+			//move the smallest position forward until the window fits
+			while (temp_max + 1 - heap.topDocid() > this.adjacency) {
+				int j = heap.topArg();
+				if (++curr_pos[j] == tfs[j]) {
+					break EVALUATE3;
+				}
+				int curr = positions[j][curr_pos[j]];
+				heap.updateTop(curr);
+				if (curr > temp_max) {
+					temp_max = curr;
 				}
-				if (flag == 1) result.invertedList.appendPosting(docid0, to_append_posting.positions);
 			}
-		freeDaaTPtrs();
-		result.invertedList.field = ptr[0].invList.field;
-		return result;
-    }
-
-    /*
-     *  Calculate the default score for the specified document if it
-     *  does not match the query operator.  This score is 0 for many
-     *  retrieval models, but not all retrieval models.
-     *  @param r A retrieval model that controls how the operator behaves.
-     *  @param docid The internal id of the document that needs a default score.
-     *  @return The default score.
-     */
-    public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
-
-        if (r instanceof RetrievalModelUnrankedBoolean)
-            return (0.0);
-
-        return 0.0;
+			//match
+			//advance all these pointers and store the position into result.
+			match[matches++] = heap.topDocid();
+			for (int j = 0; j < num_of_lists; ++j) {
+				curr_pos[j]++;
+			}
+		}
+		return matches;
     }
 
     /*
@@ -157,6 +100,6 @@ public class QryopIlWindow extends QryopIl {
         for (int i=0; i<this.args.size(); i++)
             result += this.args.get(i).toString() + " ";
 
-        return ("#NEAR/" + this.adjacency + result + ")");
+        return ("#WINDOW/" + this.adjacency + "( " + result + ")");
     }
 }
@@ -35,13 +35,47 @@ public abstract class QryopSl extends Qryop {
 
             DaaTPtr ptri = new DaaTPtr();
             ptri.invList = null;
-            ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+            ptri.scoreList = this.args.get(i).evaluateShared(r).docScores;
             ptri.nextDoc = 0;
 
             this.daatPtrs.add (ptri);
         }
     }
 
+    /**
+     *  Compile the operator into a DocIterator, for document-at-a-time
+     *  evaluation without intermediate score lists.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null if the operator can not be
+     *  compiled for this retrieval model.
+     *  @throws IOException
+     */
+    public abstract DocIterator iterator (RetrievalModel r) throws IOException;
+
+    /**
+     *  Compile the query arguments into DocIterators.  Arguments that
+     *  don't return ScoreLists are wrapped in a #SCORE operator, as
+     *  allocDaaTPtrs does.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterators, in argument order, or null if an
+     *  argument can not be compiled.
+     *  @throws IOException
+     */
+    protected DocIterator[] argIterators (RetrievalModel r) throws IOException {
+
+        DocIterator[] iterators = new DocIterator[this.args.size()];
+
+        for (int i=0; i<this.args.size(); i++) {
+            if (! QryopSl.class.isInstance (this.args.get(i)))
+                this.args.set(i, new QryopSlScore(this.args.get(i)));
+
+            iterators[i] = ((QryopSl) this.args.get(i)).iterator(r);
+            if (iterators[i] == null)
+                return null;
+        }
+        return iterators;
+    }
+
     /*
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
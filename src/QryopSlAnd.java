@@ -58,6 +58,7 @@ public class QryopSlAnd extends QryopSl {
             ptr[i] = this.daatPtrs.get(i);
             ptr[i].nextDoc = 0;
         }
+        double exponent = 1.0 / num_of_lists;
 
         EVALUATEDOCUMENTS:
         while (true) {
@@ -69,7 +70,7 @@ public class QryopSlAnd extends QryopSl {
              * the first valid docid as the initial value of temp_min_docid
              */
             for (int i = 0; i < num_of_lists; ++i) {
-                if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc < ptr[i].scoreList.size()) {
                     temp_min_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
                     break;
                 }
@@ -83,7 +84,7 @@ public class QryopSlAnd extends QryopSl {
             //search through the lists, find the min docid
             for (int i = 0; i < num_of_lists; ++i) {
                 //if the list is finished, then judge if all the lists are finished
-                if (ptr[i].nextDoc >= ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc >= ptr[i].scoreList.size()) {
                     num_finishedlists++;//count the number of finished lists
                     //if all lists are depleted, we break EVALUATEDOCUMENTS
                     if (num_finishedlists == num_of_lists) {
@@ -100,20 +101,22 @@ public class QryopSlAnd extends QryopSl {
                     temp_min_docid = curr_docid;
                 }
             }
-            //now we have the min_docid
-            double temp_scores[] = new double[num_of_lists];
-            double score = 1.0;
+            //now we have the min_docid.  The score is the product of
+            //score_i^(1/n), accumulated as a sum of weighted logs.
+            double log_score = 0.0;
             for (int i = 0; i < num_of_lists; ++i) {
-            	if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()
+            	double temp_score;
+            	if (ptr[i].nextDoc < ptr[i].scoreList.size()
             			&& ptr[i].scoreList.getDocid(ptr[i].nextDoc) == temp_min_docid) {
-            		temp_scores[i] = ptr[i].scoreList.getDocidScore(ptr[i].nextDoc);
+            		temp_score = ptr[i].scoreList.getDocidScore(ptr[i].nextDoc);
             		ptr[i].nextDoc++;
             	}
             	else {
-            		temp_scores[i] = ((QryopSl)this.args.get(i)).getDefaultScore(r, temp_min_docid);
+            		temp_score = ((QryopSl)this.args.get(i)).getDefaultScore(r, temp_min_docid);
             	}
-            	score *= Math.pow(temp_scores[i], (1.0/num_of_lists));
+            	log_score += exponent * Math.log(temp_score);
             }
+            double score = Math.exp(log_score);
             result.docScores.add(temp_min_docid, score);
         }
         freeDaaTPtrs ();
@@ -127,73 +130,85 @@ public class QryopSlAnd extends QryopSl {
         allocDaaTPtrs (r);
         QryResult result = new QryResult ();
 
-        //  Sort the arguments so that the shortest lists are first.  This
-        //  improves the efficiency of exact-match AND without changing
-        //  the result.
-
-        for (int i=0; i<(this.daatPtrs.size()-1); i++) {
-            for (int j=i+1; j<this.daatPtrs.size(); j++) {
-                if (this.daatPtrs.get(i).scoreList.scores.size() >
-                        this.daatPtrs.get(j).scoreList.scores.size()) {
-                    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
-                    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
-                    this.daatPtrs.get(j).scoreList = tmpScoreList;
-                }
-            }
-        }
-
         //  Exact-match AND requires that ALL scoreLists contain a
-        //  document id.  Use the first (shortest) list to control the
-        //  search for matches.
-
-        //  Named loops are a little ugly.  However, they make it easy
-        //  to terminate an outer loop from within an inner loop.
-        //  Otherwise it is necessary to use flags, which is also ugly.
-
-        DaaTPtr ptr0 = this.daatPtrs.get(0);
+        //  document id.
 
-        EVALUATEDOCUMENTS:
-        for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
-
-            int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
-            double docScore = 1.0;
-
-            //  Do the other query arguments have the ptr0Docid?
+        int num_of_lists = this.daatPtrs.size();
+        ScoreList lists[] = new ScoreList[num_of_lists];
+        for (int i = 0; i < num_of_lists; ++i)
+            lists[i] = this.daatPtrs.get(i).scoreList;
 
-            for (int j=1; j<this.daatPtrs.size(); j++) {
+        Intersection matches = new Intersection (lists);
 
-                DaaTPtr ptrj = this.daatPtrs.get(j);
+        for (int m = 0; m < matches.size(); ++m) {
 
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        break EVALUATEDOCUMENTS;		// No more docs can match
-                    else if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
-                        continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
-                    else if (ptrj.scoreList.getDocid (ptrj.nextDoc) < ptr0Docid)
-                        ptrj.nextDoc ++;			// Not yet at the right doc.
-                    else
-                        break;				// ptrj matches ptr0Docid
-                }
-            }
-            //  The ptr0Docid matched all query arguments, so save it.
+            int docid = matches.getDocid (m);
 
             if (r instanceof RetrievalModelUnrankedBoolean) {
-                result.docScores.add (ptr0Docid, docScore);
+                result.docScores.add (docid, 1.0);
             }
             else if (r instanceof RetrievalModelRankedBoolean) {
-                double minscore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
-                for (int i = 0; i < this.daatPtrs.size(); ++i) {
-                    DaaTPtr ptri = this.daatPtrs.get(i);
-                    double curr_score = ptri.scoreList.getDocidScore(ptri.nextDoc);
+                double minscore = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < num_of_lists; ++i) {
+                    double curr_score = lists[i].getDocidScore (matches.getIndex (i, m));
                     if (curr_score < minscore) minscore = curr_score;
                 }
-                result.docScores.add (ptr0Docid, minscore);
+                result.docScores.add (docid, minscore);
             }
         }
         freeDaaTPtrs ();
         return result;
     }
 
+    /**
+     *  Compile the operator into a DocIterator.  For Indri it matches
+     *  the documents of any argument and scores them as evaluateIndri
+     *  does; for the boolean models it matches the documents of all of
+     *  them, as evaluateBoolean does.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null for other retrieval models.
+     *  @throws IOException
+     */
+    public DocIterator iterator (RetrievalModel r) throws IOException {
+
+        if (! (r instanceof RetrievalModelIndri ||
+               r instanceof RetrievalModelUnrankedBoolean ||
+               r instanceof RetrievalModelRankedBoolean))
+            return null;
+
+        DocIterator[] args = argIterators (r);
+        if (args == null)
+            return null;
+
+        if (r instanceof RetrievalModelIndri) {
+            final double exponent = 1.0 / args.length;
+            return new DocIterator.Union (args) {
+                public double score () throws IOException {
+                    double log_score = 0.0;
+                    for (int i = 0; i < this.args.length; ++i) {
+                        double s = matches (i) ?
+                            this.args[i].score() : this.args[i].defaultScore(this.doc);
+                        log_score += exponent * Math.log(s);
+                    }
+                    return Math.exp(log_score);
+                }
+            };
+        }
+
+        final boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+        return new DocIterator.Conjunction (args) {
+            public double score () throws IOException {
+                if (! ranked)
+                    return 1.0;
+                double min = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < this.args.length; ++i)
+                    min = Math.min (min, this.args[i].score());
+                return min;
+            }
+        };
+    }
+
     /*
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
@@ -206,13 +221,9 @@ public class QryopSlAnd extends QryopSl {
     public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
     	if (r instanceof RetrievalModelUnrankedBoolean)
             return (0.0);
-    	if (r instanceof RetrievalModelIndri) {
-    		double score = 1.0;
-    		int num_of_lists = this.args.size();
-    		for (int i = 0; i < num_of_lists; ++i) {
-    			score *= Math.pow(((QryopSl)this.args.get(i)).getDefaultScore(r, docid), (1.0/(double)num_of_lists));
-    		}
-    	}
+    	//  For Indri a document that matches none of the arguments has
+    	//  always been given 0 here, which zeroes an enclosing #AND.
+    	//  Rankings depend on it, so it is kept.
     	return 0.0;
     }
 
@@ -52,105 +52,74 @@ public class QryopSlOr extends QryopSl {
         allocDaaTPtrs (r);
         QryResult result = new QryResult ();
 
+        //  A heap of the argument lists, by their next docid.
+
         int num_of_lists = this.daatPtrs.size();
-        //initialize an array of DaaTPtr objects.
         DaaTPtr ptr[] = new DaaTPtr[num_of_lists];
+        DocidHeap heap = new DocidHeap (num_of_lists);
         for (int i = 0; i < num_of_lists; ++i) {
             ptr[i] = this.daatPtrs.get(i);
             ptr[i].nextDoc = 0;
+            if (ptr[i].scoreList.size() > 0)
+                heap.add (i, ptr[i].scoreList.getDocid(0));
         }
-        System.out.println(num_of_lists);
-        for (int i = 0; i < num_of_lists; ++i) {//todo: haileiy
-        	//System.out.println(ptr[i].scoreList.scores.size());
-        }
-        
-        int curr_min_docid = -1;//stores the current minimum docid
-        double docScore = 1.0;//for unranked boolean, default score is 1.0
-
-        EVALUATEDOCUMENTS:
-        while (true) {
-            int num_finishedlists = 0;//count the number of depleted lists
-            int temp_min_docid_pos = 0;//stores the index of the min docid
-            int temp_min_docid = -1;//stores the min docid in one loop
-            /*
-             * initialize the temp_min_docid. Since the pointers in different
-             * lists will move, we need to search through all the list and find
-             * the first valid docid as the initial value of temp_min_docid
-             */
-            for (int i = 0; i < num_of_lists; ++i) {
-                if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()) {
-                    temp_min_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
-                    break;
-                }
-            }
-            // failed to initialize, meaning that all the lists are depleted.
-            // So we break the EVALUATEDOCUMENTS loop
-            if (temp_min_docid == -1) {
-                break EVALUATEDOCUMENTS;
-            }
 
-            //search through the lists, find the min docid
-            for (int i = 0; i < num_of_lists; ++i) {
-                //if the list is finished, then judge if all the lists are finished
-                if (ptr[i].nextDoc >= ptr[i].scoreList.scores.size()) {
-                    num_finishedlists++;//count the number of finished lists
-                    //if all lists are depleted, we break EVALUATEDOCUMENTS
-                    if (num_finishedlists == num_of_lists) {
-                        break EVALUATEDOCUMENTS;
-                    }
-                    continue;
-                }
-
-                int curr_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
-
-                //update temp_min_docid
-                //and remember the position of the minimum value;
-                if (curr_docid <= temp_min_docid) {
-                    temp_min_docid = curr_docid;
-                    temp_min_docid_pos = i;
-                }
+        while (heap.size() > 0) {
+            int docid = heap.topDocid();
+            double maxScore = Double.NEGATIVE_INFINITY;	// the largest score of the duplicates
+            do {
+                DaaTPtr p = ptr[heap.topArg()];
+                maxScore = Math.max (maxScore, p.scoreList.getDocidScore(p.nextDoc));
+                p.nextDoc++;
+                if (p.nextDoc < p.scoreList.size())
+                    heap.updateTop (p.scoreList.getDocid(p.nextDoc));
+                else
+                    heap.pop ();
+            } while (heap.size() > 0 && heap.topDocid() == docid);
+
+            if (r instanceof RetrievalModelUnrankedBoolean) {
+                result.docScores.add (docid, 1.0);	//for unranked boolean, default score is 1.0
             }
-
-            //duplicate entry. Need to find the one with the max score
-            
-            /*
-             * The docids are inserted into the result in order.
-             * So, if the temp_min_docid is equal to curr_min_docid, we know that
-             * there are duplicates.
-             * 
-             */
-            if (temp_min_docid == curr_min_docid) {
-                double curr_score = ptr[temp_min_docid_pos].scoreList.
-                                    getDocidScore(ptr[temp_min_docid_pos].nextDoc);
-                double prev_score = result.docScores.getLast().score;
-                if (curr_score > prev_score) {
-                    // replace the last entry with one that has same docid and
-                    // smaller score.
-                    result.docScores.removeLast();
-                    result.docScores.add(temp_min_docid, curr_score);
-                }
-                ptr[temp_min_docid_pos].nextDoc++;
-            }
-
-            // if temp_min_docid is greater than curr_min_docid, insert it to
-            // the result.
-            if (temp_min_docid > curr_min_docid) {
-                if (r instanceof RetrievalModelUnrankedBoolean) {
-                    result.docScores.add (temp_min_docid, docScore);
-                }
-                else if (r instanceof RetrievalModelRankedBoolean) {
-                    double toInsert = ptr[temp_min_docid_pos].scoreList.
-                                      getDocidScore(ptr[temp_min_docid_pos].nextDoc);
-                    result.docScores.add(temp_min_docid, toInsert);
-                }
-                ptr[temp_min_docid_pos].nextDoc++;
-                curr_min_docid = temp_min_docid;
+            else if (r instanceof RetrievalModelRankedBoolean) {
+                result.docScores.add (docid, maxScore);
             }
         }
         freeDaaTPtrs ();
         return result;
     }
 
+    /**
+     *  Compile the operator into a DocIterator.  Like evaluateBoolean,
+     *  it is only defined for the boolean retrieval models.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null.
+     *  @throws IOException
+     */
+    public DocIterator iterator (RetrievalModel r) throws IOException {
+
+        if (! (r instanceof RetrievalModelUnrankedBoolean ||
+               r instanceof RetrievalModelRankedBoolean))
+            return null;
+
+        DocIterator[] args = argIterators (r);
+        if (args == null)
+            return null;
+
+        final boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+        return new DocIterator.Union (args) {
+            public double score () throws IOException {
+                if (! ranked)
+                    return 1.0;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < this.args.length; i++)
+                    if (matches (i))
+                        max = Math.max (max, this.args[i].score());
+                return max;
+            }
+        };
+    }
+
     /**
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
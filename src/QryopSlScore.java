@@ -14,6 +14,13 @@ import java.util.*;
 public class QryopSlScore extends QryopSl {
 	public String field;
 	public int ctf;
+
+	//  Indri constants for this term, computed once per query.
+	private double indri_lambda;
+	private double indri_mu;
+	private double indri_mu_p_mle;		// mu * p_MLE
+	private double indri_background;	// (1 - lambda) * p_MLE
+
     /**
      *  Construct a new SCORE operator.  The SCORE operator accepts just
      *  one argument.
@@ -64,59 +71,77 @@ public class QryopSlScore extends QryopSl {
     
     public QryResult evaluateIndri(RetrievalModel r) throws IOException {
     	
-    	QryResult result = args.get(0).evaluate(r);
+    	InvList list = args.get(0).evaluateShared(r).invertedList;
+    	QryResult result = new QryResult();
     	
     	// get constants from invlist and index
-    	String invfield = result.invertedList.field;
-        int df = result.invertedList.df;
-        int ctf = result.invertedList.ctf;
-        long length_C = QryEval.READER.getSumTotalTermFreq(invfield);
-        // smoothing
-        double p_MLE = ((double)ctf) / ((double)length_C);
+    	String invfield = list.field;
+        int df = list.df;
+        setIndriConstants((RetrievalModelIndri)r, list);
+        double lambda = this.indri_lambda;
+        double mu = this.indri_mu;
         
         // compute scores
-        for (int j = 0; j < df; ++j) {
+        PostingCursor postings = list.cursor();
+        while (df > 0 && postings.nextDoc() != PostingCursor.NO_MORE_DOCS) {
         	
-            int docid = result.invertedList.postings.get(j).docid;
-            int tf = result.invertedList.postings.get(j).tf;
+            int docid = postings.docID();
+            int tf = postings.freq();
             long length_d = QryEval.dls.getDocLength(invfield, docid);
             //calculate scores
-            double score = ((RetrievalModelIndri)r).Indri_lambda * ((double)tf + ((RetrievalModelIndri)r).Indri_mu * p_MLE) /
-            		((double)length_d + ((RetrievalModelIndri)r).Indri_mu) + (1 - ((RetrievalModelIndri)r).Indri_lambda) * p_MLE;
+            double score = lambda * ((double)tf + this.indri_mu_p_mle) /
+            		((double)length_d + mu) + this.indri_background;
             
             result.docScores.add(docid, score);
         }
-        
-        //prepare the result, store the invlist's ctf and field in score object
-        this.ctf = ctf;//haileiy1019
-        this.field = invfield;
         return result;
     }
+
+    /**
+     *  Compute the Indri constants of the term, and store the inverted
+     *  list's ctf and field, which getDefaultScore uses.
+     *  @param r The Indri retrieval model.
+     *  @param list The term's inverted list.
+     *  @throws IOException
+     */
+    private void setIndriConstants(RetrievalModelIndri r, InvList list) throws IOException {
+        long length_C = QryEval.STATS.getSumTotalTermFreq(list.field);
+        // smoothing
+        double p_MLE = ((double)list.ctf) / ((double)length_C);
+        this.indri_lambda = r.Indri_lambda;
+        this.indri_mu = r.Indri_mu;
+        this.indri_mu_p_mle = this.indri_mu * p_MLE;
+        this.indri_background = (1 - this.indri_lambda) * p_MLE;
+        this.ctf = list.ctf;//haileiy1019
+        this.field = list.field;
+    }
     
     public QryResult evaluateBM25(RetrievalModel r) throws IOException {
     	
-    	QryResult result = args.get(0).evaluate(r);
+    	InvList list = args.get(0).evaluateShared(r).invertedList;
+    	QryResult result = new QryResult();
     	System.out.println("parameters " + ((RetrievalModelBM25)r).BM25_k_1 + '\t' + 
     			((RetrievalModelBM25)r).BM25_b + '\t' + ((RetrievalModelBM25)r).BM25_k_3);
     	//get the contants from index.
-        String invfield = result.invertedList.field;
-        int N = QryEval.READER.numDocs();
-        double avg_doclen = (double)QryEval.READER.getSumTotalTermFreq(invfield) / QryEval.READER.getDocCount(invfield);//haileiy 1011
-        int df = result.invertedList.df;
+        String invfield = list.field;
+        int N = QryEval.STATS.numDocs();
+        double avg_doclen = QryEval.STATS.getAvgDocLength(invfield);//haileiy 1011
+        int df = list.df;
 
         //calculate the weights
-        double RSJ_weight = Math.log((double)(N - df + 0.5) / (double)(df + 0.5));
+        double RSJ_weight = RetrievalModelBM25.rsj(N, df);
+        //the length normalization of each document, precomputed
+        double[] norms = QryEval.dls.getBM25Norms(invfield, ((RetrievalModelBM25)r).BM25_k_1,
+        		((RetrievalModelBM25)r).BM25_b, avg_doclen);
         
         //calculate scores
-        for (int j = 0; j < df; ++j) {//calculates scores for every document
-            int docid = result.invertedList.getDocid(j);
-        	int tf = result.invertedList.getTf(j);
+        PostingCursor postings = list.cursor();
+        while (df > 0 && postings.nextDoc() != PostingCursor.NO_MORE_DOCS) {//calculates scores for every document
+            int docid = postings.docID();
+        	int tf = postings.freq();
 
-        	long doclen = QryEval.dls.getDocLength(invfield, docid);
-            
             //calculate the tf_weight
-            double tf_weight = tf / ((double)tf + ((RetrievalModelBM25)r).BM25_k_1 * ((1 - ((RetrievalModelBM25)r).BM25_b) + 
-            		((RetrievalModelBM25)r).BM25_b * doclen / avg_doclen));
+            double tf_weight = tf / ((double)tf + norms[docid]);
             
             double score = RSJ_weight * tf_weight;//didn't use user_weight
             result.docScores.add(docid, score);
@@ -132,33 +157,122 @@ public class QryopSlScore extends QryopSl {
       *  @throws IOException
       */
     public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
-        // Evaluate the query argument.
+        // Evaluate the query argument.  Its result may be shared with
+        // other operators (see QrySharing), so the scores go into a new
+        // result, which does not have an inverted list.
 
-        QryResult result = args.get(0).evaluate(r);
+        InvList list = args.get(0).evaluateShared(r).invertedList;
+        QryResult result = new QryResult();
 
-        // Each pass of the loop computes a score for one document. Note:
-        // If the evaluate operation above returned a score list (which is
-        // very possible), this loop gets skipped.
-        for (int i = 0; i < result.invertedList.df; i++) {
+        // Each pass of the loop computes a score for one document.
+        PostingCursor postings = list.cursor();
+        while (list.df > 0 &&
+               postings.nextDoc() != PostingCursor.NO_MORE_DOCS) {
 
             // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY.
             if (r instanceof RetrievalModelUnrankedBoolean) {
-                result.docScores.add(result.invertedList.postings.get(i).docid,
+                result.docScores.add(postings.docID(),
                                      (float) 1.0);
             }
             else if (r instanceof RetrievalModelRankedBoolean) {
-                result.docScores.add(result.invertedList.postings.get(i).docid,
-                                     (double)result.invertedList.postings.get(i).tf);
+                result.docScores.add(postings.docID(),
+                                     (double)postings.freq());
             }
         }
 
-        // The SCORE operator should not return a populated inverted list.
-        // If there is one, replace it with an empty inverted list.
+        return result;
+    }
 
-        if (result.invertedList.df > 0)
-            result.invertedList = new InvList();
+    /**
+     *  Compile the operator into a DocIterator that reads the
+     *  argument's postings and scores them as evaluate does.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator.
+     *  @throws IOException
+     */
+    public DocIterator iterator (RetrievalModel r) throws IOException {
 
-        return result;
+        ScoreIterator it = new ScoreIterator();
+        it.r = r;
+
+        //  The boolean models do not need the df or ctf of a positional
+        //  operator, so its positions are matched only in the documents
+        //  that are confirmed.
+
+        if (args.get(0) instanceof QryopIlPositional &&
+            (r instanceof RetrievalModelUnrankedBoolean ||
+             r instanceof RetrievalModelRankedBoolean)) {
+            QryopIlPositional.Cursor postings = ((QryopIlPositional) args.get(0)).cursor(r);
+            it.df = postings.cost();
+            it.postings = postings;
+            return it;
+        }
+
+        InvList list = args.get(0).evaluateShared(r).invertedList;
+        it.field = list.field;
+        it.df = list.df;
+        it.postings = (list.df > 0) ? list.cursor() : new InvList().cursor();
+
+        if (r instanceof RetrievalModelBM25) {
+            int N = QryEval.STATS.numDocs();
+            double avg_doclen = QryEval.STATS.getAvgDocLength(list.field);
+            it.rsj = RetrievalModelBM25.rsj(N, list.df);
+            it.norms = QryEval.dls.getBM25Norms(list.field, ((RetrievalModelBM25)r).BM25_k_1,
+                    ((RetrievalModelBM25)r).BM25_b, avg_doclen);
+        } else if (r instanceof RetrievalModelIndri) {
+            setIndriConstants((RetrievalModelIndri)r, list);
+        }
+        return it;
+    }
+
+    /**
+     *  Iterates over the postings of the argument's inverted list.
+     */
+    private class ScoreIterator extends DocIterator {
+        RetrievalModel r;
+        String field;
+        long df;
+        PostingCursor postings;
+        double rsj;		// BM25
+        double[] norms;		// BM25
+
+        public int nextDoc() throws IOException {
+            return (this.doc = this.postings.nextDoc());
+        }
+
+        public int advance(int target) throws IOException {
+            return (this.doc = this.postings.advance(target));
+        }
+
+        public double score() throws IOException {
+            int tf = this.postings.freq();
+            if (this.r instanceof RetrievalModelBM25)
+                return this.rsj * (tf / ((double)tf + this.norms[this.doc]));
+            if (this.r instanceof RetrievalModelIndri) {
+                long length_d = QryEval.dls.getDocLength(this.field, this.doc);
+                return indri_lambda * ((double)tf + indri_mu_p_mle) /
+                    ((double)length_d + indri_mu) + indri_background;
+            }
+            if (this.r instanceof RetrievalModelRankedBoolean)
+                return (double)tf;
+            return 1.0;
+        }
+
+        public double defaultScore(int docid) throws IOException {
+            return getDefaultScore(this.r, docid);
+        }
+
+        public long cost() {
+            return this.df;
+        }
+
+        public boolean matches() throws IOException {
+            return this.postings.matches();
+        }
+
+        public float matchCost() {
+            return this.postings.matchCost();
+        }
     }
 
     /*
@@ -172,11 +286,8 @@ public class QryopSlScore extends QryopSl {
     public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
         if (r instanceof RetrievalModelIndri){
         	long length_d = QryEval.dls.getDocLength(this.field, (int)docid);//should be long? haileiy
-        	long length_C = QryEval.READER.getSumTotalTermFreq(this.field);
-            double p_MLE = ((double)this.ctf) / ((double)length_C);
-        	double score = ((RetrievalModelIndri)r).Indri_lambda * (((RetrievalModelIndri)r).Indri_mu * p_MLE) / 
-        			(length_d + ((RetrievalModelIndri)r).Indri_mu) + (1 - ((RetrievalModelIndri)r).Indri_lambda) * p_MLE;
-        	return score;
+        	return this.indri_lambda * this.indri_mu_p_mle /
+        			(length_d + this.indri_mu) + this.indri_background;
         }
         return 0.0;
     }
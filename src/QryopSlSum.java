@@ -5,9 +5,17 @@
  */
 
 import java.io.*;
+import java.util.ArrayList;
 
 public class QryopSlSum extends QryopSl {
 
+    //  The number of times each argument occurs in the query.  The
+    //  parser gives every argument 1; QryOptimizer folds duplicate
+    //  arguments into one with a larger count.  An argument's score is
+    //  added qtf times.
+
+    ArrayList<Integer> qtf = new ArrayList<Integer>();
+
     /**
      *  It is convenient for the constructor to accept a variable number
      *  of arguments. Thus new qryopSum (arg1, arg2, arg3, ...).
@@ -15,7 +23,7 @@ public class QryopSlSum extends QryopSl {
      */
     public QryopSlSum(Qryop... q) {
         for (int i = 0; i < q.length; i++)
-            this.args.add(q[i]);
+            add(q[i]);
     }
 
     /**
@@ -27,6 +35,17 @@ public class QryopSlSum extends QryopSl {
      */
     public void add (Qryop a) {
         this.args.add(a);
+        this.qtf.add(1);
+    }
+
+    /**
+     *  Removes an argument, and its qtf.
+     *  @param i The index of the query operator to remove.
+     *  @return void
+     */
+    public void remove(int i) {
+        this.args.remove(i);
+        this.qtf.remove(i);
     }
 
     /**
@@ -52,85 +71,86 @@ public class QryopSlSum extends QryopSl {
         allocDaaTPtrs (r);
         QryResult result = new QryResult ();
 
+        //  A heap of the argument lists, by their next docid.  The
+        //  arguments of a docid come off it last argument first, and
+        //  their scores are added in that order.
+
         int num_of_lists = this.daatPtrs.size();
-        //initialize an array of DaaTPtr objects.
         DaaTPtr ptr[] = new DaaTPtr[num_of_lists];
+        int qtf[] = getQtfs();
+        DocidHeap heap = new DocidHeap (num_of_lists);
         for (int i = 0; i < num_of_lists; ++i) {
             ptr[i] = this.daatPtrs.get(i);
             ptr[i].nextDoc = 0;
+            if (ptr[i].scoreList.size() > 0)
+                heap.add (i, ptr[i].scoreList.getDocid(0));
         }
-        
-        int curr_min_docid = -1;//stores the current minimum docid
-        EVALUATEDOCUMENTS:
-        while (true) {
-            int num_finishedlists = 0;//count the number of depleted lists
-            int temp_min_docid_pos = 0;//stores the index of the min docid
-            int temp_min_docid = -1;//stores the min docid in one loop
-            /* initialize the temp_min_docid. Since the pointers in different
-             * lists will move, we need to search through all the list and find
-             * the first valid docid as the initial value of temp_min_docid
-             */
-            for (int i = 0; i < num_of_lists; ++i) {
-                if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()) {
-                    temp_min_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
-                    break;
-                }
-            }
-            // failed to initialize, meaning that all the lists are depleted.
-            // So we break the EVALUATEDOCUMENTS loop
-            if (temp_min_docid == -1) {
-                break EVALUATEDOCUMENTS;
-            }
-
-            //search through the lists, find the min docid
-            for (int i = 0; i < num_of_lists; ++i) {
-                //if the list is finished, then judge if all the lists are finished
-                if (ptr[i].nextDoc >= ptr[i].scoreList.scores.size()) {
-                    num_finishedlists++;//count the number of finished lists
-                    //if all lists are depleted, break EVALUATEDOCUMENTS
-                    if (num_finishedlists == num_of_lists) {
-                        break EVALUATEDOCUMENTS;
-                    }
-                    continue;
-                }
-
-                int curr_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
-
-                //update temp_min_docid and store the position of the min value
-                if (curr_docid <= temp_min_docid) {
-                    temp_min_docid = curr_docid;
-                    temp_min_docid_pos = i;
-                }
-            }
 
-            /* duplicate entry. Need to find the one with the max score
-             * The docids are inserted into the result in order.
-             * So, if the temp_min_docid is equal to curr_min_docid, we know that
-             * there are duplicates.
-             */
-            if (temp_min_docid == curr_min_docid) {
-                double curr_score = ptr[temp_min_docid_pos].scoreList.
-                                    getDocidScore(ptr[temp_min_docid_pos].nextDoc) + result.docScores.getLast().score;
-                result.docScores.removeLast();
-                result.docScores.add(temp_min_docid, curr_score);
-                ptr[temp_min_docid_pos].nextDoc++;
-            }
-            /* 
-             * if temp_min_docid is greater than curr_min_docid, insert it to
-             * the result.
-             */
-            if (temp_min_docid > curr_min_docid) {
-                double toInsert = ptr[temp_min_docid_pos].scoreList.
-                                  getDocidScore(ptr[temp_min_docid_pos].nextDoc);
-                result.docScores.add(temp_min_docid, toInsert);
-                ptr[temp_min_docid_pos].nextDoc++;
-                curr_min_docid = temp_min_docid;
-            }
+        while (heap.size() > 0) {
+            int docid = heap.topDocid();
+            double score = 0.0;
+            do {
+                DaaTPtr p = ptr[heap.topArg()];
+                score += qtf[heap.topArg()] * p.scoreList.getDocidScore(p.nextDoc);
+                p.nextDoc++;
+                if (p.nextDoc < p.scoreList.size())
+                    heap.updateTop (p.scoreList.getDocid(p.nextDoc));
+                else
+                    heap.pop ();
+            } while (heap.size() > 0 && heap.topDocid() == docid);
+            result.docScores.add(docid, score);
         }
         freeDaaTPtrs ();
         return result;
     }
 
+    /**
+     *  Compile the operator into a DocIterator.  A document's score is
+     *  the sum of its arguments' scores, each counted qtf times, added
+     *  last argument first, as
+     *  evaluateBoolean adds them.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null if an argument can not be compiled.
+     *  @throws IOException
+     */
+    public DocIterator iterator (RetrievalModel r) throws IOException {
+
+        DocIterator[] args = argIterators (r);
+        if (args == null)
+            return null;
+
+        final int qtf[] = getQtfs();
+        return new DocIterator.Union (args) {
+            public double score () throws IOException {
+                double score = 0.0;
+                for (int i = this.args.length - 1; i >= 0; i--)
+                    if (matches (i))
+                        score += qtf[i] * this.args[i].score();
+                return score;
+            }
+        };
+    }
+
+    /**
+     *  @return The qtf of each argument, in argument order.
+     */
+    int[] getQtfs() {
+        int qtf[] = new int[this.qtf.size()];
+        for (int i = 0; i < qtf.length; ++i)
+            qtf[i] = this.qtf.get(i);
+        return qtf;
+    }
+
+    /**
+     *  @return True if some argument occurs more than once.
+     */
+    boolean hasRepeatedArgs() {
+        for (int i = 0; i < this.qtf.size(); ++i)
+            if (this.qtf.get(i) != 1)
+                return true;
+        return false;
+    }
+
     /**
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
@@ -147,6 +167,17 @@ public class QryopSlSum extends QryopSl {
         return 0.0;
     }
 
+    /**
+     *  @return The signature of this query operator, which includes
+     *  each argument's qtf.
+     */
+    public String signature() {
+        String result = "QryopSlSum(";
+        for (int i=0; i<this.args.size(); i++)
+            result += " " + this.qtf.get(i) + " " + this.args.get(i).signature();
+        return result + " )";
+    }
+
     /**
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
@@ -156,7 +187,8 @@ public class QryopSlSum extends QryopSl {
         String result = new String ();
 
         for (int i=0; i<this.args.size(); i++)
-            result += this.args.get(i).toString() + " ";
+            result += this.args.get(i).toString() +
+                ((this.qtf.get(i) == 1) ? " " : "^" + this.qtf.get(i) + " ");
 
         return ("#sum( " + result + ")");
     }
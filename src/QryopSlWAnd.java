@@ -9,6 +9,7 @@ import java.util.ArrayList;
 
 public class QryopSlWAnd extends QryopSl {
 	ArrayList<Float> weight = new ArrayList<Float>();
+	private double exponents[] = null;	// weight_i/total_weight, for Indri
     /**
      *  It is convenient for the constructor to accept a variable number
      *  of arguments. Thus new qryopAnd (arg1, arg2, arg3, ...).
@@ -61,6 +62,7 @@ public class QryopSlWAnd extends QryopSl {
             ptr[i] = this.daatPtrs.get(i);
             ptr[i].nextDoc = 0;
         }
+        double exponents[] = getExponents();
 
         EVALUATEDOCUMENTS:
         while (true) {
@@ -72,7 +74,7 @@ public class QryopSlWAnd extends QryopSl {
              * the first valid docid as the initial value of temp_min_docid
              */
             for (int i = 0; i < num_of_lists; ++i) {
-                if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc < ptr[i].scoreList.size()) {
                     temp_min_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
                     break;
                 }
@@ -86,7 +88,7 @@ public class QryopSlWAnd extends QryopSl {
             //search through the lists, find the min docid
             for (int i = 0; i < num_of_lists; ++i) {
                 //if the list is finished, then judge if all the lists are finished
-                if (ptr[i].nextDoc >= ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc >= ptr[i].scoreList.size()) {
                     num_finishedlists++;//count the number of finished lists
                     //if all lists are depleted, we break EVALUATEDOCUMENTS
                     if (num_finishedlists == num_of_lists) {
@@ -103,35 +105,52 @@ public class QryopSlWAnd extends QryopSl {
                     temp_min_docid = curr_docid;
                 }
             }
-            //now we have the min_docid
-            double temp_scores[] = new double[num_of_lists];
-            double score = 1.0;
-            
-            double total_weight = 0.0;
-            for (int i = 0; i < this.weight.size(); ++i){
-                total_weight += this.weight.get(i);
-            }
-            if (total_weight == 0.0) {
-            	total_weight = 1;
-            }
-            //System.out.println(total_weight);
+            //now we have the min_docid.  The score is the product of
+            //score_i^(weight_i/total_weight), accumulated as a sum of
+            //weighted logs.
+            double log_score = 0.0;
             for (int i = 0; i < num_of_lists; ++i) {
-            	if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()
+            	double temp_score;
+            	if (ptr[i].nextDoc < ptr[i].scoreList.size()
             			&& ptr[i].scoreList.getDocid(ptr[i].nextDoc) == temp_min_docid) {
-            		temp_scores[i] = ptr[i].scoreList.getDocidScore(ptr[i].nextDoc);
+            		temp_score = ptr[i].scoreList.getDocidScore(ptr[i].nextDoc);
             		ptr[i].nextDoc++;
             	}
             	else {
-            		temp_scores[i] = ((QryopSl)this.args.get(i)).getDefaultScore(r, temp_min_docid);
+            		temp_score = ((QryopSl)this.args.get(i)).getDefaultScore(r, temp_min_docid);
             	}
-            	score *= Math.pow(temp_scores[i], ((this.weight.get(i))/total_weight));
+            	if (exponents[i] != 0.0)	// x^0 is 1, even for x = 0
+            		log_score += exponents[i] * Math.log(temp_score);
             }
+            double score = Math.exp(log_score);
             result.docScores.add(temp_min_docid, score);
         }
         freeDaaTPtrs ();
         return result;
     }
     
+    /**
+     *  The exponent of each argument's score in the Indri product,
+     *  weight_i/total_weight.  They are computed once per query.
+     *  @return The exponents, in argument order.
+     */
+    private double[] getExponents() {
+    	if (this.exponents == null) {
+    		double total_weight = 0.0;
+    		for (int i = 0; i < this.weight.size(); ++i) {
+    			total_weight += this.weight.get(i);
+    		}
+    		if (total_weight == 0.0) {
+    			total_weight = 1;
+    		}
+    		this.exponents = new double[this.args.size()];
+    		for (int i = 0; i < this.exponents.length; ++i) {
+    			this.exponents[i] = this.weight.get(i) / total_weight;
+    		}
+    	}
+    	return this.exponents;
+    }
+
     public QryResult evaluateBoolean (RetrievalModel r) throws IOException {
 
         //  Initialization
@@ -145,8 +164,8 @@ public class QryopSlWAnd extends QryopSl {
 
         for (int i=0; i<(this.daatPtrs.size()-1); i++) {
             for (int j=i+1; j<this.daatPtrs.size(); j++) {
-                if (this.daatPtrs.get(i).scoreList.scores.size() >
-                        this.daatPtrs.get(j).scoreList.scores.size()) {
+                if (this.daatPtrs.get(i).scoreList.size() >
+                        this.daatPtrs.get(j).scoreList.size()) {
                     ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
                     this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
                     this.daatPtrs.get(j).scoreList = tmpScoreList;
@@ -165,7 +184,7 @@ public class QryopSlWAnd extends QryopSl {
         DaaTPtr ptr0 = this.daatPtrs.get(0);
 
         EVALUATEDOCUMENTS:
-        for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+        for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
 
             int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
             double docScore = 1.0;
@@ -176,16 +195,12 @@ public class QryopSlWAnd extends QryopSl {
 
                 DaaTPtr ptrj = this.daatPtrs.get(j);
 
-                while (true) {
-                    if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-                        break EVALUATEDOCUMENTS;		// No more docs can match
-                    else if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
-                        continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
-                    else if (ptrj.scoreList.getDocid (ptrj.nextDoc) < ptr0Docid)
-                        ptrj.nextDoc ++;			// Not yet at the right doc.
-                    else
-                        break;				// ptrj matches ptr0Docid
-                }
+                ptrj.nextDoc = ptrj.scoreList.advance (ptrj.nextDoc, ptr0Docid);
+
+                if (ptrj.nextDoc >= ptrj.scoreList.size())
+                    break EVALUATEDOCUMENTS;		// No more docs can match
+                else if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
+                    continue EVALUATEDOCUMENTS;	// The ptr0docid can't match.
             }
             //  The ptr0Docid matched all query arguments, so save it.
 
@@ -206,6 +221,64 @@ public class QryopSlWAnd extends QryopSl {
         return result;
     }
 
+    /**
+     *  Compile the operator into a DocIterator.  For Indri it matches
+     *  the documents of any argument and scores them as evaluateIndri
+     *  does; for the boolean models it matches the documents of all of
+     *  them, as evaluateBoolean does.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null for other retrieval models.
+     *  @throws IOException
+     */
+    public DocIterator iterator (RetrievalModel r) throws IOException {
+
+        if (! (r instanceof RetrievalModelIndri ||
+               r instanceof RetrievalModelUnrankedBoolean ||
+               r instanceof RetrievalModelRankedBoolean))
+            return null;
+
+        DocIterator[] args = argIterators (r);
+        if (args == null)
+            return null;
+
+        if (r instanceof RetrievalModelIndri) {
+            final double exponents[] = getExponents();
+            return new DocIterator.Union (args) {
+                public double score () throws IOException {
+                    double log_score = 0.0;
+                    for (int i = 0; i < this.args.length; ++i) {
+                        double s = matches (i) ?
+                            this.args[i].score() : this.args[i].defaultScore(this.doc);
+                        if (exponents[i] != 0.0)
+                            log_score += exponents[i] * Math.log(s);
+                    }
+                    return Math.exp(log_score);
+                }
+
+                public double defaultScore (int docid) throws IOException {
+                    double log_score = 0.0;
+                    for (int i = 0; i < this.args.length; ++i)
+                        if (exponents[i] != 0.0)
+                            log_score += exponents[i] * Math.log(this.args[i].defaultScore(docid));
+                    return Math.exp(log_score);
+                }
+            };
+        }
+
+        final boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+        return new DocIterator.Conjunction (args) {
+            public double score () throws IOException {
+                if (! ranked)
+                    return 1.0;
+                double min = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < this.args.length; ++i)
+                    min = Math.min (min, this.args[i].score());
+                return min;
+            }
+        };
+    }
+
     /*
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
@@ -219,25 +292,29 @@ public class QryopSlWAnd extends QryopSl {
     	if (r instanceof RetrievalModelUnrankedBoolean)
             return (0.0);
     	if (r instanceof RetrievalModelIndri) {
-    		double score = 1.0;
-    		int num_of_lists = this.args.size();
-    		double total_weight = 0.0;
-            for (int i = 0; i < this.weight.size(); ++i){
-                total_weight += this.weight.get(i);
-            }
-            if (total_weight == 0.0) {
-            	total_weight = 1;
-            }
-            //System.out.println(total_weight);
-    		for (int i = 0; i < num_of_lists; ++i) {
-    			score *= Math.pow(((QryopSl)this.args.get(i)).getDefaultScore(r, docid), (this.weight.get(i)/total_weight));
+    		double exponents[] = getExponents();
+    		double log_score = 0.0;
+    		for (int i = 0; i < exponents.length; ++i) {
+    			if (exponents[i] != 0.0)
+    				log_score += exponents[i] *
+    					Math.log(((QryopSl)this.args.get(i)).getDefaultScore(r, docid));
     		}
-    		return score;
-    		//return Math.pow(score, (1.0/(double)num_of_lists));
+    		return Math.exp(log_score);
     	}
     	return 0.0;
     }
 
+    /**
+     *  @return The signature of this query operator, which includes
+     *  the weights.
+     */
+    public String signature() {
+        String result = "QryopSlWAnd(";
+        for (int i=0; i<this.args.size(); i++)
+            result += " " + this.weight.get(i) + " " + this.args.get(i).signature();
+        return result + " )";
+    }
+
     /*
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
@@ -247,8 +324,8 @@ public class QryopSlWAnd extends QryopSl {
         String result = new String ();
 
         for (int i=0; i<this.args.size(); i++)
-            result += this.args.get(i).toString() + " ";
+            result += this.weight.get(i) + " " + this.args.get(i).toString() + " ";
 
-        return ("#AND( " + result + ")");
+        return ("#WAND( " + result + ")");
     }
 }
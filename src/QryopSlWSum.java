@@ -96,7 +96,7 @@ public class QryopSlWSum extends QryopSl {
              * the first valid docid as the initial value of temp_min_docid
              */
             for (int i = 0; i < num_of_lists; ++i) {
-                if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc < ptr[i].scoreList.size()) {
                     temp_min_docid = ptr[i].scoreList.getDocid(ptr[i].nextDoc);
                     break;
                 }
@@ -110,7 +110,7 @@ public class QryopSlWSum extends QryopSl {
             //search through the lists, find the min docid
             for (int i = 0; i < num_of_lists; ++i) {
                 //if the list is finished, then judge if all the lists are finished
-                if (ptr[i].nextDoc >= ptr[i].scoreList.scores.size()) {
+                if (ptr[i].nextDoc >= ptr[i].scoreList.size()) {
                     num_finishedlists++;//count the number of finished lists
                     //if all lists are depleted, we break EVALUATEDOCUMENTS
                     if (num_finishedlists == num_of_lists) {
@@ -131,7 +131,7 @@ public class QryopSlWSum extends QryopSl {
             double temp_scores[] = new double[num_of_lists];
             float score = 0.0f;
             for (int i = 0; i < num_of_lists; ++i) {
-            	if (ptr[i].nextDoc < ptr[i].scoreList.scores.size()
+            	if (ptr[i].nextDoc < ptr[i].scoreList.size()
             			&& ptr[i].scoreList.getDocid(ptr[i].nextDoc) == temp_min_docid) {
             		temp_scores[i] = ptr[i].scoreList.getDocidScore(ptr[i].nextDoc);
             		ptr[i].nextDoc++;
@@ -147,6 +147,46 @@ public class QryopSlWSum extends QryopSl {
         return result;
     }
 
+    /**
+     *  Compile the operator into a DocIterator.  A document's score is
+     *  the weighted sum of its arguments' scores (or default scores),
+     *  accumulated in float as evaluateIndri does.
+     *  @param r A retrieval model that controls how the operator behaves.
+     *  @return The iterator, or null if an argument can not be compiled.
+     *  @throws IOException
+     */
+    public DocIterator iterator (final RetrievalModel r) throws IOException {
+
+        DocIterator[] args = argIterators (r);
+        if (args == null)
+            return null;
+
+        final double weights[] = new double[args.length];
+        for (int i = 0; i < weights.length; ++i)
+            weights[i] = this.weight.get(i);
+
+        return new DocIterator.Union (args) {
+            public double score () throws IOException {
+                float score = 0.0f;
+                for (int i = 0; i < this.args.length; ++i) {
+                    double s = matches (i) ?
+                        this.args[i].score() : this.args[i].defaultScore(this.doc);
+                    score += weights[i] * s;
+                }
+                return score;
+            }
+
+            public double defaultScore (int docid) throws IOException {
+                if (! (r instanceof RetrievalModelIndri))
+                    return 0.0;
+                double score = 1.0;
+                for (int i = 0; i < this.args.length; ++i)
+                    score *= this.args[i].defaultScore(docid);
+                return Math.pow(score, (1.0/(double)this.args.length));
+            }
+        };
+    }
+
     /**
      *  Calculate the default score for the specified document if it
      *  does not match the query operator.  This score is 0 for many
@@ -169,6 +209,17 @@ public class QryopSlWSum extends QryopSl {
     	return 0.0;
     }
 
+    /**
+     *  @return The signature of this query operator, which includes
+     *  the weights.
+     */
+    public String signature() {
+        String result = "QryopSlWSum(";
+        for (int i=0; i<this.args.size(); i++)
+            result += " " + this.weight.get(i) + " " + this.args.get(i).signature();
+        return result + " )";
+    }
+
     /**
      *  Return a string version of this query operator.
      *  @return The string version of this query operator.
@@ -178,8 +229,8 @@ public class QryopSlWSum extends QryopSl {
         String result = new String ();
 
         for (int i=0; i<this.args.size(); i++)
-            result += this.args.get(i).toString() + " ";
+            result += this.weight.get(i) + " " + this.args.get(i).toString() + " ";
 
-        return ("#sum( " + result + ")");
+        return ("#WSUM( " + result + ")");
     }
 }
@@ -3,6 +3,17 @@ public class RetrievalModelBM25 extends RetrievalModel {
 	public double BM25_k_1;
     public double BM25_b;
     public double BM25_k_3;
+
+    /**
+     * The Robertson-Sparck Jones weight of a term, which every BM25
+     * scorer multiplies its tf weight by.
+     * @param N The number of documents in the collection.
+     * @param df The number of documents that contain the term.
+     * @return The RSJ weight.
+     */
+    public static double rsj(int N, int df) {
+        return Math.log((N - df + 0.5) / (df + 0.5));
+    }
 	
     /**
      * Set a retrieval model parameter.
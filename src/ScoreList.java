@@ -2,47 +2,34 @@
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
  *
+ *  Entries are stored in growable parallel arrays of docids and
+ *  scores, so adding a document allocates nothing.  External ids are
+ *  not stored unless they are set explicitly, which is normally done
+ *  only for the documents that are finally ranked.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.util.*;
 
-import org.apache.lucene.document.Document;
-
 public class ScoreList {
 
-	/**
-	 * ScoreList contains three fields: docid, score, externalID
-	 * @author haileiy
-	 *
-	 */
-    public static class ScoreListEntry {
-        public int docid;//changed to public by haileiy
-        public double score;
-        public String externalID;
-        private ScoreListEntry(int docid, double score) {
-            this.docid = docid;
-            this.score = score;
-        }
-        public void setExternalID (String extID) {
-            this.externalID = extID;
-        }
-    }
-    
-    Comparator<ScoreListEntry> BY_SCORE = new Comparator<ScoreListEntry> () {
-		public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-			if (s1.score == s2.score) {//rank by id
-				return s1.externalID.compareTo(s2.externalID);
-			}
-			else if (s1.score > s2.score) return -1;
-			else return 1;
-		}
-	};
-
-    List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    private int[] docids = new int[16];
+    private double[] scores = new double[16];
+    private String[] externalIds = null;	// allocated by setExternalId
+    private int size = 0;
     //public int ctf;
     //public String field;
-    
+
+    /**
+     * Skip data.  skipDocids[k] is the docid of the last entry in the
+     * k'th group of SKIP_INTERVAL entries.  Score lists are built in
+     * docid order, so advance() can use it to jump over whole groups.
+     */
+    static final int SKIP_INTERVAL = 64;
+    private int[] skipDocids = new int[4];
+    private int numSkips = 0;
+
     /**
      *  Append a document score to a score list.
      *  @param docid An internal document id.
@@ -50,16 +37,73 @@ public class ScoreList {
      *  @return void
      */
     public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+        if (size == docids.length) {
+            docids = Arrays.copyOf(docids, 2 * size);
+            scores = Arrays.copyOf(scores, 2 * size);
+            if (externalIds != null)
+                externalIds = Arrays.copyOf(externalIds, 2 * size);
+        }
+        docids[size] = docid;
+        scores[size] = score;
+        size++;
+        if (size % SKIP_INTERVAL == 0) {
+            if (numSkips == skipDocids.length)
+                skipDocids = Arrays.copyOf(skipDocids, 2 * numSkips);
+            skipDocids[numSkips++] = docid;
+        }
     }
 
+    /**
+     *  Remove the last entry.
+     *  @return void
+     */
     public void removeLast() {
-        ScoreListEntry toRemove = scores.get(scores.size() - 1);
-        scores.remove(toRemove);
+        if (size % SKIP_INTERVAL == 0)
+            numSkips--;
+        size--;
+        if (externalIds != null)
+            externalIds[size] = null;
+    }
+
+    /**
+     *  Replace the score of the last entry.
+     *  @param score The new score.
+     *  @return void
+     */
+    public void setLastScore(double score) {
+        scores[size - 1] = score;
     }
 
-    public ScoreListEntry getLast() {
-        return scores.get(scores.size() - 1);
+    /**
+     *  @return The score of the last entry.
+     */
+    public double getLastScore() {
+        return scores[size - 1];
+    }
+
+    /**
+     *  @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *  Find the first entry at or after index n whose docid is at least
+     *  target.  Groups of entries that end before target are skipped.
+     *  @param n The index to start from.
+     *  @param target The docid to advance to.
+     *  @return The index of the entry, or size if there is none.
+     */
+    public int advance(int n, int target) {
+        int k = n / SKIP_INTERVAL;
+        while (k < numSkips && skipDocids[k] < target)
+            k++;
+        if (k * SKIP_INTERVAL > n)
+            n = k * SKIP_INTERVAL;
+        while (n < size && docids[n] < target)
+            n++;
+        return n;
     }
 
     /**
@@ -68,30 +112,206 @@ public class ScoreList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        return this.docids[n];
+    }
+
+    /**
+     *  Set the external id of the n'th document.
+     *  @param n The index of the document.
+     *  @param externalId The document's external id.
+     *  @return void
+     */
+    public void setExternalId(int n, String externalId) {
+        if (externalIds == null)
+            externalIds = new String[docids.length];
+        externalIds[n] = externalId;
+    }
+
+    /**
+     *  Get the external id of the n'th document, if it was set.
+     *  @param n The index of the document.
+     *  @return The external id, or null.
+     */
+    public String getExternalId(int n) {
+        return (externalIds == null) ? null : externalIds[n];
     }
-    
+
     /** Sort the results by score
-     * When there is a tie, sort by externalID
+     * When there is a tie, sort by externalID (or by docid if the
+     * external ids were not set)
      */
     public void sortByScore() {
-    	Collections.sort(this.scores, this.BY_SCORE);
+        if (size > 1)
+            sortByScore(0, size - 1);
+    	this.numSkips = 0;	// no longer in docid order
     }
+
+    /**
+     *  Keep only the k highest scoring entries.  The k'th highest score
+     *  is found with a bounded min-heap of scores.  Of the entries that
+     *  tie with it, the ones whose external ids come first are kept;
+     *  only those entries are compared, and their ids are not copied
+     *  out of the table.  The order of the entries that are kept is not
+     *  defined.
+     *  @param k The number of entries to keep.
+     *  @param table The external ids, or null to break ties by docid.
+     *  @return void
+     */
+    public void keepTopScores(int k, final ExternalIdTable table) {
+        if (size <= k)
+            return;
+        if (k <= 0) {
+            size = 0;
+            numSkips = 0;
+            return;
+        }
+
+        //  heap[0] is the smallest of the k highest scores seen so far.
+
+        double[] heap = Arrays.copyOf(scores, k);
+        for (int i = k / 2 - 1; i >= 0; i--)
+            siftDown(heap, i, k);
+        for (int i = k; i < size; i++) {
+            if (scores[i] > heap[0]) {
+                heap[0] = scores[i];
+                siftDown(heap, 0, k);
+            }
+        }
+
+        //  Of the entries that tie with the k'th score, keep the ones
+        //  whose external ids come first.
+
+        double threshold = heap[0];
+        int above = 0;
+        List<Integer> ties = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            if (scores[i] > threshold)
+                above++;
+            else if (scores[i] == threshold)
+                ties.add(docids[i]);
+        }
+        Collections.sort(ties, new Comparator<Integer>() {
+            public int compare(Integer d1, Integer d2) {
+                return compareExternalIds(table, d1, d2);
+            }
+        });
+        int lastTie = ties.get(k - above - 1);
+
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (scores[i] > threshold ||
+                (scores[i] == threshold && compareExternalIds(table, docids[i], lastTie) <= 0)) {
+                docids[kept] = docids[i];
+                scores[kept] = scores[i];
+                if (externalIds != null)
+                    externalIds[kept] = externalIds[i];
+                kept++;
+            }
+        }
+        truncate(kept);
+        this.numSkips = 0;	// entries are no longer grouped
+    }
+
+    /**
+     *  Drop all entries after the first n.
+     *  @param n The number of entries to keep.
+     *  @return void
+     */
+    public void truncate(int n) {
+        if (n >= size)
+            return;
+        if (externalIds != null)
+            Arrays.fill(externalIds, n, size, null);
+        size = n;
+        numSkips = Math.min(numSkips, n / SKIP_INTERVAL);
+    }
+
     /**
      *  Get the score of the n'th document.
      *  @param n The index of the requested document score.
      *  @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        return this.scores[n];
     }
+
     /**
      * print the scorelist
      */
     public void printScoreList () {
         System.out.println("======This is list =====");
-        for (ScoreListEntry p : scores) {
-            System.out.println(p.docid + p.externalID);
+        for (int i = 0; i < size; i++) {
+            System.out.println(docids[i] + getExternalId(i));
+        }
+    }
+
+    /**
+     *  Compare entries i and j in ranking order.
+     *  @return A negative number if entry i ranks first.
+     */
+    private int compare(int i, int j) {
+        if (scores[i] != scores[j])
+            return (scores[i] > scores[j]) ? -1 : 1;
+        String ei = getExternalId(i);
+        String ej = getExternalId(j);
+        if (ei != null && ej != null)
+            return ei.compareTo(ej);
+        return (docids[i] < docids[j]) ? -1 : ((docids[i] == docids[j]) ? 0 : 1);
+    }
+
+    /**
+     *  Compare two documents by external id, then by docid.
+     */
+    private static int compareExternalIds(ExternalIdTable table, int d1, int d2) {
+        int c = (table == null) ? 0 : table.compare(d1, d2);
+        if (c != 0)
+            return c;
+        return (d1 < d2) ? -1 : ((d1 == d2) ? 0 : 1);
+    }
+
+    private static void siftDown(double[] heap, int i, int n) {
+        double v = heap[i];
+        while (2 * i + 1 < n) {
+            int c = 2 * i + 1;
+            if (c + 1 < n && heap[c + 1] < heap[c])
+                c++;
+            if (heap[c] >= v)
+                break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = v;
+    }
+
+    private void swap(int i, int j) {
+        int d = docids[i]; docids[i] = docids[j]; docids[j] = d;
+        double s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+        if (externalIds != null) {
+            String e = externalIds[i]; externalIds[i] = externalIds[j]; externalIds[j] = e;
+        }
+    }
+
+    /**
+     *  Quicksort the entries lo..hi (inclusive) in place.
+     */
+    private void sortByScore(int lo, int hi) {
+        while (lo < hi) {
+            swap(lo + (hi - lo) / 2, hi);	// middle element as pivot
+            int p = lo;
+            for (int i = lo; i < hi; i++)
+                if (compare(i, hi) < 0)
+                    swap(i, p++);
+            swap(p, hi);
+
+            //  Recurse on the smaller side to bound the stack depth.
+
+            if (p - lo < hi - p) {
+                sortByScore(lo, p - 1);
+                lo = p + 1;
+            } else {
+                sortByScore(p + 1, hi);
+                hi = p - 1;
+            }
         }
     }
 }
@@ -146,13 +146,14 @@ public class TermVector {
     }
 
     /**
-     * Returns ctf of the i'th stem.
+     * Returns ctf of the i'th stem.  Term statistics come from
+     * QryEval.STATS, which caches them.
      * @param i Index of the stem.
      * @return ctf of the stem.
      * @throws IOException.
      */
     public long totalStemFreq(int i) throws IOException {
-        return QryEval.READER.totalTermFreq(terms[i]);
+        return QryEval.STATS.ctf(terms[i].field(), stems[i]);
     }
 
     /**
@@ -162,7 +163,7 @@ public class TermVector {
      * @throws IOException.
      */
     public int stemDf(int i) throws IOException {
-        return QryEval.READER.docFreq(terms[i]);
+        return QryEval.STATS.df(terms[i].field(), stems[i]);
     }
 
 }
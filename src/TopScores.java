@@ -0,0 +1,72 @@
+/**
+ *  TopScores keeps the k highest scores seen so far, in a min-heap of
+ *  primitive doubles, so that a top-k evaluation knows the score a
+ *  document must reach to be among them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+public class TopScores {
+
+    private int k;
+    private double[] heap;
+    private int size = 0;
+
+    /**
+     *  @param k The number of scores to keep.
+     */
+    public TopScores(int k) {
+        this.k = k;
+        this.heap = new double[Math.max(k, 1)];
+    }
+
+    /**
+     *  Offer a score.
+     *  @param score The score of a document.
+     *  @return void
+     */
+    public void add(double score) {
+        if (this.size < this.k) {
+            this.heap[this.size] = score;
+            siftUp(this.size++);
+        } else if (this.k > 0 && score > this.heap[0]) {
+            this.heap[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     *  The score a document must reach to be among the k highest so
+     *  far: the k'th highest score, or negative infinity while there
+     *  are fewer than k.  A document that ties it may still rank in
+     *  the top k, depending on its external id.
+     *  @return The threshold.
+     */
+    public double threshold() {
+        return (this.size == this.k && this.k > 0) ?
+            this.heap[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    private void siftUp(int i) {
+        double v = this.heap[i];
+        while (i > 0 && this.heap[(i - 1) / 2] > v) {
+            this.heap[i] = this.heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        this.heap[i] = v;
+    }
+
+    private void siftDown(int i) {
+        double v = this.heap[i];
+        while (2 * i + 1 < this.size) {
+            int c = 2 * i + 1;
+            if (c + 1 < this.size && this.heap[c + 1] < this.heap[c])
+                c++;
+            if (this.heap[c] >= v)
+                break;
+            this.heap[i] = this.heap[c];
+            i = c;
+        }
+        this.heap[i] = v;
+    }
+}